@@ -21,8 +21,19 @@ public abstract class GameCanvas extends javax.microedition.lcdui.game.GameCanva
     protected GameMIDlet midlet;
     /** Rendering frequency used by the animation thread */
     protected final static int FRAMERATE_MILLISEC = 66;
+    /** Display period for smooth animation: about the refresh rate of most screens (MIDP does not tell it) */
+    protected final static int DISPLAY_MILLISEC = 16;
+    /**
+     * Period of the animation thread's frames while frames are rendered between steps (see needsAnimation),
+     * FRAMERATE_MILLISEC otherwise
+     */
+    protected volatile int framePeriod = FRAMERATE_MILLISEC;
     /** "In pause" status of the game */
     protected volatile boolean isPaused = false;
+    /** Turbo mode constant for as many steps as possible */
+    protected static final int TURBO_UNBOUNDED = 0;
+    /** Turbo mode of fixed step tasks: number of steps per step duration (1 for real time), or TURBO_UNBOUNDED */
+    protected volatile int turbo = 1;
     /** All game events are scheduled and sequenced by a single Timer thread */
     protected Timer timer = null;
     private Timer timerKeepLightsOn = null;
@@ -61,6 +72,114 @@ public abstract class GameCanvas extends javax.microedition.lcdui.game.GameCanva
         }
     }
 
+    /**
+     * Game event task running a deterministic simulation with a fixed time step.
+     * The task is scheduled by the Timer at a fixed rate, once per time step (see Timer.scheduleAtFixedRate):
+     * the elapsed time is accumulated and consumed one step at a time, each step being run by the poll
+     * closest to its ideal time, so that steps keep a fixed rate whatever the polling delays and the
+     * clock granularity. Under overload, the catch-up is capped to MAX_CATCH_UP steps per poll and
+     * the remaining backlog is dropped. In turbo mode, turbo steps are run per step duration, or as
+     * many steps as possible during a step duration when unbounded. Only the state after the last
+     * step of a poll is rendered.
+     */
+    protected abstract class FixedStepTask extends RepaintTask {
+
+        /** Maximum number of steps run by a single poll */
+        public final static int MAX_CATCH_UP = 4;
+        /** Duration of a step */
+        private final int stepMillisec;
+        /** Time of the last poll, -1 before the first one */
+        private long lastPollTime = -1;
+        /** Elapsed time not yet consumed by steps */
+        private long accumulator;
+        /** Number of steps run so far */
+        private long tick = 0;
+        /** Number of steps dropped under overload (statistics) */
+        public long droppedSteps = 0;
+        /** Maximum and total difference between the time of the steps and their ideal time, in real time mode (statistics, in ms) */
+        public long maxJitter = 0, totalJitter = 0;
+        /** Number of steps run during the last second (statistics) */
+        public int ticksPerSecond = 0;
+        /** Start time and first step of the current ticksPerSecond measure */
+        private long rateStartTime = -1, rateStartTick = 0;
+
+        protected FixedStepTask(int stepMillisec) {
+            this.stepMillisec = stepMillisec;
+        }
+
+        /** Run one step of the simulation */
+        protected abstract void step(long tick);
+
+        /** Called after the last step of a poll, before the repaint request */
+        protected void endSteps() {
+        }
+
+        /** Number of steps run so far */
+        public long getTicks() {
+            return tick;
+        }
+
+        /** Describe the steps timing since the task was scheduled */
+        public String getStatistics() {
+            return "ticks " + tick + ", jitter max " + maxJitter + "ms avg " + (tick == 0 ? 0 : totalJitter / tick)
+                    + "ms, dropped " + droppedSteps + ", " + ticksPerSecond + " ticks/s";
+        }
+
+        /** Triggered by the Timer. Run the steps that are due, then ask for a repaint if any. */
+        public void run() {
+            long now = System.currentTimeMillis();
+            int speed = turbo;
+            if (lastPollTime < 0) {
+                // First step is due right now
+                accumulator = stepMillisec;
+                rateStartTime = now;
+            } else {
+                accumulator += (now - lastPollTime) * Math.max(speed, 1);
+            }
+            lastPollTime = now;
+            int steps = 0;
+            if (speed == TURBO_UNBOUNDED) {
+                // As many steps as possible during a step duration
+                accumulator = 0;
+                do {
+                    step(tick++);
+                    steps++;
+                } while (!isPaused && System.currentTimeMillis() - now < stepMillisec);
+            } else {
+                // A step is due once its ideal time is closer than the next poll
+                while (accumulator >= stepMillisec / 2 && steps < MAX_CATCH_UP * speed && !isPaused) {
+                    // Measure how far from its ideal time this step is (tick jitter)
+                    if (speed == 1) {
+                        long jitter = Math.abs(accumulator - stepMillisec);
+                        totalJitter += jitter;
+                        if (jitter > maxJitter) {
+                            maxJitter = jitter;
+                        }
+                    }
+                    step(tick++);
+                    accumulator -= stepMillisec;
+                    steps++;
+                }
+                // Overload: drop the backlog rather than spiraling
+                if (accumulator >= stepMillisec / 2) {
+                    long dropped = (accumulator + stepMillisec / 2) / stepMillisec;
+                    droppedSteps += dropped;
+                    accumulator -= dropped * stepMillisec;
+                }
+            }
+            // Measure the achieved steps rate
+            if (now - rateStartTime >= 1000) {
+                ticksPerSecond = (int) ((tick - rateStartTick) * 1000 / (now - rateStartTime));
+                rateStartTime = now;
+                rateStartTick = tick;
+            }
+            if (steps > 0) {
+                endSteps();
+                super.run();
+            }
+        }
+    }
+
     /**
      * Specialized TimerTask used to keep the LCD lights on during the game.
      */
@@ -97,15 +216,76 @@ public abstract class GameCanvas extends javax.microedition.lcdui.game.GameCanva
         needsRepaint = REPAINT_ALL;
     }
 
-    /** Animation thread for rendering  */
+    /** Number of frames rendered by the animation thread (statistics) */
+    public int framesRendered = 0;
+    /** Number of frames rendered during the last second (statistics) */
+    public int framesPerSecond = 0;
+    /** Delay after which a frame is counted late (wait and clock granularity), in ms */
+    private static final int FRAME_TOLERANCE_MILLISEC = 4;
+    /** Number of frames started late after their deadline, and maximum delay (statistics, in ms) */
+    public int lateFrames = 0;
+    public long maxFrameLateness = 0;
+    /** Number of frames skipped because their deadline had passed a whole frame ago (statistics) */
+    public int skippedFrames = 0;
+
+    /** Describe the animation thread's statistics */
+    public String getFrameStatistics() {
+        return "frames " + framesRendered + ", late " + lateFrames + " (max " + maxFrameLateness + "ms), skipped " + skippedFrames
+                + ", " + framesPerSecond + " frames/s";
+    }
+
+    /**
+     * Ask for the rendering of a frame, for a given cause (REPAINT_TIMER, REPAINT_KEY or both).
+     * Called by the animation thread; returns false if nothing needs to be rendered.
+     * Repaints the whole screen by default.
+     */
+    protected boolean requestRepaint(int cause) {
+        repaint(0, 0, getWidth(), getHeight());
+        return true;
+    }
+
+    /**
+     * Check if a frame should be rendered even though no repaint was asked for (the display changes between
+     * two steps, see framePeriod). Called by the animation thread; false by default.
+     */
+    protected boolean needsAnimation() {
+        return false;
+    }
+
+    /**
+     * Animation thread for rendering.
+     * Frames are scheduled on absolute deadlines, every framePeriod from the thread start,
+     * so that the waiting errors don't accumulate. When the thread is behind by a whole frame or more,
+     * the missed frames are skipped rather than rendered in a burst: the rendering starts again at the
+     * current frame. The game itself runs on the timer thread, and is never slowed by the rendering.
+     * CLDC only provides a millisecond clock (System.currentTimeMillis).
+     */
     private class AnimationThread extends Thread {
 
         /** Main loop for animation thread. Manage rendering every frame rate, when necessary. */
         public void run() {
             try {
+                long deadline = System.currentTimeMillis();
+                long rateStartTime = deadline;
+                int rateStartFrames = framesRendered;
                 // when the GameCanvas will set its animationThread member to null, this thread will die
                 while (this == animationThread) {
-                    long startTime = System.currentTimeMillis();
+                    int period = needsAnimation() ? framePeriod : FRAMERATE_MILLISEC;
+                    long now = System.currentTimeMillis();
+                    long lateness = now - deadline;
+                    if (lateness >= period) {
+                        // Behind schedule: skip the missed frames, without catching up
+                        long skipped = lateness / period;
+                        skippedFrames += skipped;
+                        deadline += skipped * period;
+                        lateness -= skipped * period;
+                    }
+                    if (lateness > maxFrameLateness) {
+                        maxFrameLateness = lateness;
+                    }
+                    if (lateness > FRAME_TOLERANCE_MILLISEC) {
+                        lateFrames++;
+                    }
                     if (!isPaused) {
                         if (isShown()) {
                             hasBeenShown = true;
@@ -113,17 +293,27 @@ public abstract class GameCanvas extends javax.microedition.lcdui.game.GameCanva
                             pause();
                         }
                     }
-                    if (isShown() && needsRepaint != REPAINT_NONE) {
+                    if (isShown() && (needsRepaint != REPAINT_NONE || needsAnimation())) {
                         // a rendering is needed
+                        int repaintCause = needsRepaint;
                         needsRepaint = REPAINT_NONE;
-                        repaint(0, 0, getWidth(), getHeight());
-                        serviceRepaints();
+                        if (requestRepaint(repaintCause)) {
+                            serviceRepaints();
+                            framesRendered++;
+                        }
+                    }
+                    // Measure the achieved frames rate
+                    if (now - rateStartTime >= 1000) {
+                        framesPerSecond = (int) ((framesRendered - rateStartFrames) * 1000 / (now - rateStartTime));
+                        rateStartTime = now;
+                        rateStartFrames = framesRendered;
                     }
-                    long timeTaken = System.currentTimeMillis() - startTime;
-                    // see you soon (at next frame rate)...
-                    if (timeTaken < FRAMERATE_MILLISEC) {
+                    // see you soon (at next frame deadline)...
+                    deadline += period;
+                    long delay = deadline - System.currentTimeMillis();
+                    if (delay > 0) {
                         synchronized (this) {
-                            wait(FRAMERATE_MILLISEC - timeTaken);
+                            wait(delay);
                         }
                     } else {
                         yield();
@@ -10,42 +10,104 @@ import javax.microedition.lcdui.*;
  */
 class GameFont extends GameSprite {
 
-    /** Characters represented by each frame of the sprite (in order) */
-    private String characterSet;
+    /** Number of characters with a direct glyph lookup (others are not drawn) */
+    private static final int GLYPHS_COUNT = 128;
+    /** Frame of each character (-1 if none), from the character set */
+    private byte[] glyphs = new byte[GLYPHS_COUNT];
+    /** Space between characters in pixels */
+    public int spacing = 1;
 
-    /** Constructor from a resource name and a character set */
-    public GameFont(String name, int frameWidth, int frameHeight, String characterSet) throws IOException {
-        super(name, frameWidth, frameHeight, 0, 0);
-        this.characterSet = characterSet;
+    /** Constructor from a given Image and a character set: characters represented by each frame of the sprite (in order) */
+    public GameFont(Image image, int frameWidth, int frameHeight, String characterSet) {
+        super(image, frameWidth, frameHeight, 0, 0);
         if (characterSet.length() != framesCount) {
             throw new IllegalArgumentException();
         }
+        for (int c = 0; c < GLYPHS_COUNT; c++) {
+            glyphs[c] = -1;
+        }
+        for (int i = framesCount - 1; i >= 0; i--) {
+            char c = characterSet.charAt(i);
+            if (c < GLYPHS_COUNT) {
+                glyphs[c] = (byte) i;
+            }
+        }
     }
 
-    /** Draw a character string, using this font */
-    public void drawString(Graphics g, String str, int x, int y, int anchor) {
-        int strLength = str.length();
-        if (strLength == 0) {
-            return;
-        }
-        // Adjust position according to anchor
-        if ((anchor & Graphics.BOTTOM) != 0) {
-            y -= frameHeight;
-        } else if ((anchor & Graphics.VCENTER) != 0) {
-            y -= frameHeight / 2;
+    /** Constructor from a resource name and a character set */
+    public GameFont(String name, int frameWidth, int frameHeight, String characterSet) throws IOException {
+        this(Image.createImage(name), frameWidth, frameHeight, characterSet);
+    }
+
+    /** Width in pixels of a given number of characters, using this font */
+    public int charsWidth(int length) {
+        return length == 0 ? 0 : (frameWidth + spacing) * length - spacing;
+    }
+
+    /** Width of a character string in pixels, using this font */
+    public int stringWidth(String str) {
+        return charsWidth(str.length());
+    }
+
+    /** Draw a character, using this font */
+    private void drawChar(Graphics g, char c, int x, int y) {
+        if (c < GLYPHS_COUNT && glyphs[c] >= 0) {
+            paint(g, glyphs[c], x, y);
         }
+    }
+
+    /** Adjust the left position of a text of a given length, according to anchor */
+    private int getLeft(int x, int length, int anchor) {
         if ((anchor & Graphics.RIGHT) != 0) {
-            x -= (frameWidth + 1) * strLength - 1;
+            return x - charsWidth(length);
         } else if ((anchor & Graphics.HCENTER) != 0) {
-            x -= ((frameWidth + 1) * strLength - 1) / 2;
+            return x - charsWidth(length) / 2;
         }
-        // Draw each character
+        return x;
+    }
+
+    /** Adjust the top position of a text, according to anchor */
+    private int getTop(int y, int anchor) {
+        if ((anchor & Graphics.BOTTOM) != 0) {
+            return y - frameHeight;
+        } else if ((anchor & Graphics.VCENTER) != 0) {
+            return y - frameHeight / 2;
+        }
+        return y;
+    }
+
+    /** Draw a character string, using this font */
+    public void drawString(Graphics g, String str, int x, int y, int anchor) {
+        int strLength = str.length();
+        x = getLeft(x, strLength, anchor);
+        y = getTop(y, anchor);
         for (int i = 0; i < strLength; i++) {
-            int frameNumber = characterSet.indexOf(str.charAt(i));
-            if (frameNumber >= 0) {
-                paint(g, frameNumber, x, y);
+            drawChar(g, str.charAt(i), x, y);
+            x += frameWidth + spacing;
+        }
+    }
+
+    /** Draw characters from an array, using this font */
+    public void drawChars(Graphics g, char[] chars, int offset, int length, int x, int y, int anchor) {
+        x = getLeft(x, length, anchor);
+        y = getTop(y, anchor);
+        for (int i = offset; i < offset + length; i++) {
+            drawChar(g, chars[i], x, y);
+            x += frameWidth + spacing;
+        }
+    }
+
+    /** Draw characters from an array into a framebuffer, using this font */
+    public void drawChars(GameFramebuffer framebuffer, char[] chars, int offset, int length, int x, int y, int anchor) {
+        x = getLeft(x, length, anchor);
+        y = getTop(y, anchor);
+        GameSpriteSheet sheet = getSheet();
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+            if (c < GLYPHS_COUNT && glyphs[c] >= 0) {
+                framebuffer.drawSprite(sheet, glyphs[c], x, y);
             }
-            x += frameWidth + 1;
+            x += frameWidth + spacing;
         }
     }
 }
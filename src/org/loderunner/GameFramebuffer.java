@@ -0,0 +1,100 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+/**
+ * Software framebuffer: pixels composed into an int array, then pushed to the screen with a single
+ * Graphics.drawRGB (see LodeRunnerRenderer.flushFramebuffer). Sprites are copied from their decoded pixels,
+ * skipping the transparent ones with run-length masks (see GameSpriteSheet). Drawing is translated and
+ * clipped as with Graphics, without alpha blending: sprite pixels are either opaque or transparent.
+ * Independent of lcdui, so that desktop tools compose images the way the game does.
+ */
+class GameFramebuffer {
+
+    /** Size of the framebuffer in pixels */
+    public final int width, height;
+    /** Pixels of the framebuffer, one row after the other */
+    public final int[] pixels;
+    /** Translation of the drawing coordinates */
+    private int translateX = 0, translateY = 0;
+    /** Clip, in framebuffer pixels (right and bottom excluded) */
+    private int clipX0, clipY0, clipX1, clipY1;
+
+    /** Allocate a framebuffer of a given size, clipped to its whole area */
+    GameFramebuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        pixels = new int[width * height];
+        setClip(0, 0, width, height);
+    }
+
+    /** Set the translation of the drawing coordinates */
+    public void setTranslation(int x, int y) {
+        translateX = x;
+        translateY = y;
+    }
+
+    /** Set the clip, in translated coordinates, within the framebuffer */
+    public void setClip(int x, int y, int width, int height) {
+        x += translateX;
+        y += translateY;
+        clipX0 = Math.max(x, 0);
+        clipY0 = Math.max(y, 0);
+        clipX1 = Math.min(x + width, this.width);
+        clipY1 = Math.min(y + height, this.height);
+    }
+
+    /** Fill a rectangle, in translated coordinates, with a color */
+    public void fillRect(int x, int y, int width, int height, int color) {
+        int x0 = Math.max(x + translateX, clipX0), x1 = Math.min(x + translateX + width, clipX1);
+        int y0 = Math.max(y + translateY, clipY0), y1 = Math.min(y + translateY + height, clipY1);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        int offset = y0 * this.width + x0;
+        for (int i = offset; i < offset + x1 - x0; i++) {
+            pixels[i] = color;
+        }
+        // Copy the first row to the next ones
+        for (int y2 = y0 + 1; y2 < y1; y2++) {
+            System.arraycopy(pixels, offset, pixels, y2 * this.width + x0, x1 - x0);
+        }
+    }
+
+    /** Set a pixel, in translated coordinates, to a color */
+    public void setPixel(int x, int y, int color) {
+        x += translateX;
+        y += translateY;
+        if (x >= clipX0 && x < clipX1 && y >= clipY0 && y < clipY1) {
+            pixels[y * width + x] = color;
+        }
+    }
+
+    /** Draw a given frame of a sprite at a given position, in translated coordinates */
+    public void drawSprite(GameSpriteSheet sprite, int frameNumber, int x, int y) {
+        x += translateX - sprite.refX;
+        y += translateY - sprite.refY;
+        // Only draw if at least partly visible
+        if (x + sprite.frameWidth <= clipX0 || y + sprite.frameHeight <= clipY0 || x >= clipX1 || y >= clipY1) {
+            return;
+        }
+        int[] source = sprite.pixels;
+        short[] mask = sprite.getMask(frameNumber);
+        int imageWidth = sprite.imageWidth, sourceOffset = sprite.getPixelsOffset(frameNumber);
+        int m = 0;
+        for (int row = 0; row < sprite.frameHeight; row++, sourceOffset += imageWidth) {
+            int runs = mask[m++], y2 = y + row;
+            if (y2 < clipY0 || y2 >= clipY1) {
+                m += 2 * runs;
+                continue;
+            }
+            for (; runs > 0; runs--) {
+                int start = mask[m++], length = mask[m++];
+                int x0 = Math.max(x + start, clipX0), x1 = Math.min(x + start + length, clipX1);
+                if (x0 < x1) {
+                    System.arraycopy(source, sourceOffset + x0 - x, pixels, y2 * width + x0, x1 - x0);
+                }
+            }
+        }
+    }
+}
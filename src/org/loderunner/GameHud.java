@@ -0,0 +1,115 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.util.Hashtable;
+import javax.microedition.lcdui.*;
+
+/**
+ * Head-up display text, rendered with the default system font without any allocation per frame.
+ * Dynamic text (numbers, counters) is built from ints into a preallocated char buffer.
+ * Static labels are rendered once into images with a transparent background, and cached by label.
+ */
+class GameHud {
+
+    /** Maximum number of digits of a formatted number */
+    public static final int MAX_DIGITS = 10;
+    /** Maximum number of characters of the dynamic text */
+    private static final int MAX_LENGTH = 32;
+    /** Font of the text and labels */
+    public final Font font = Font.getDefaultFont();
+    /** Characters of the dynamic text */
+    private char[] text = new char[MAX_LENGTH];
+    private int length = 0;
+    /** Images of the labels already rendered, by label */
+    private Hashtable labels = new Hashtable();
+
+    /** Image of a label, rendered with a color */
+    private static class Label {
+        Image image;
+        int color;
+    }
+
+    /**
+     * Format a positive number into an array of characters, padded with zeros to a given number of digits.
+     * Returns the offset following the last digit.
+     */
+    public static int formatNumber(char[] chars, int offset, int number, int digits) {
+        int count = 1;
+        for (int n = number / 10; n > 0; n /= 10) {
+            count++;
+        }
+        if (count < digits) {
+            count = digits;
+        }
+        for (int i = offset + count - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + number % 10);
+            number /= 10;
+        }
+        return offset + count;
+    }
+
+    /** Clear the dynamic text */
+    public GameHud clear() {
+        length = 0;
+        return this;
+    }
+
+    /** Append a string to the dynamic text */
+    public GameHud append(String string) {
+        string.getChars(0, string.length(), text, length);
+        length += string.length();
+        return this;
+    }
+
+    /** Append a positive number to the dynamic text, padded with zeros to a given number of digits */
+    public GameHud append(int number, int digits) {
+        length = formatNumber(text, length, number, digits);
+        return this;
+    }
+
+    /** Get the image of a label, rendered with a color on a transparent background */
+    private Image getLabelImage(String label, int color) {
+        Label cached = (Label) labels.get(label);
+        if (cached == null) {
+            cached = new Label();
+            labels.put(label, cached);
+        } else if (cached.color == color) {
+            return cached.image;
+        }
+        // Render on black, then make the black pixels transparent
+        int width = Math.max(1, font.stringWidth(label)), height = font.getHeight();
+        Image image = Image.createImage(width, height);
+        Graphics g = image.getGraphics();
+        g.setColor(0);
+        g.fillRect(0, 0, width, height);
+        g.setFont(font);
+        g.setColor(color);
+        g.drawString(label, 0, 0, Graphics.TOP | Graphics.LEFT);
+        int[] pixels = new int[width * height];
+        image.getRGB(pixels, 0, width, 0, 0, width, height);
+        for (int i = 0; i < pixels.length; i++) {
+            if ((pixels[i] & 0x00ffffff) == 0) {
+                pixels[i] = 0;
+            }
+        }
+        cached.image = Image.createRGBImage(pixels, width, height, true);
+        cached.color = color;
+        return cached.image;
+    }
+
+    /** Width in pixels of a label, or of the dynamic text if null */
+    public int getWidth(String label) {
+        return label == null ? font.charsWidth(text, 0, length) : font.stringWidth(label);
+    }
+
+    /** Draw a label with the current color, or the dynamic text if null */
+    public void draw(Graphics g, String label, int x, int y, int anchor) {
+        if (label == null) {
+            g.setFont(font);
+            g.drawChars(text, 0, length, x, y, anchor);
+        } else {
+            g.drawImage(getLabelImage(label, g.getColor() & 0x00ffffff), x, y, anchor);
+        }
+    }
+}
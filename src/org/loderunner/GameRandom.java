@@ -2,12 +2,65 @@ package org.loderunner;
 
 /* Copyright � 2006 - Fabien GIGANTE */
 
-import java.util.*;
-
 /**
- * Extended version of the standard Random class
+ * Small and fast pseudorandom generator (xorshift, 32 bits of state).
+ * Unlike the standard Random class, it is not synchronized and its whole state
+ * can be read and restored, so that a game can be replayed exactly.
+ * A generator must not be shared between threads.
  */
-class GameRandom extends Random {
+class GameRandom {
+
+    /** Current state, never 0 */
+    private int state;
+
+    /** Create a generator with a given seed */
+    public GameRandom(long seed) {
+        setSeed(seed);
+    }
+
+    /** Create a generator with a seed of 0 */
+    public GameRandom() {
+        this(0);
+    }
+
+    /** Reset this generator with a given seed */
+    public void setSeed(long seed) {
+        // Mix the seed bits (splitmix finalizer), so that close seeds give unrelated sequences
+        seed += 0x9e3779b97f4a7c15L;
+        seed = (seed ^ (seed >>> 30)) * 0xbf58476d1ce4e5b9L;
+        seed = (seed ^ (seed >>> 27)) * 0x94d049bb133111ebL;
+        seed ^= seed >>> 31;
+        setState((int) (seed ^ (seed >>> 32)));
+    }
+
+    /** Get the current state of this generator */
+    public int getState() {
+        return state;
+    }
+
+    /** Restore a state of this generator (see getState) */
+    public void setState(int state) {
+        // 0 is the only state a xorshift generator can't leave
+        this.state = state == 0 ? 0x2545f491 : state;
+    }
+
+    /** Returns the next pseudorandom 32 bits */
+    public int nextInt() {
+        int x = state;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return state = x;
+    }
+
+    /** Returns the next pseudorandom between 0 and n-1 */
+    public int nextInt(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException();
+        }
+        // Scale the 32 bits to [0, n) with a multiply, rather than a biased modulo
+        return (int) (((nextInt() & 0xffffffffL) * n) >>> 32);
+    }
 
     /** Returns true if the next pseudorandom between 0 and n-1 egals 0 */
     public boolean nextBoolean(int n) {
@@ -22,6 +22,8 @@ class GameSprite {
     public int framesCountX, framesCountY;
     /** Origin within each frame in pixels */
     public int refX, refY;
+    /** Decoded pixels and masks of the frames, on first use (see GameFramebuffer) */
+    private GameSpriteSheet sheet = null;
 
     /** Constructor from a given Image */
     public GameSprite(Image image, int frameWidth, int frameHeight, int refX, int refY) {
@@ -40,6 +42,49 @@ class GameSprite {
         this(Image.createImage(name), frameWidth, frameHeight, refX, refY);
     }
 
+    /**
+     * Scale an image by an integer factor, with nearest neighbour sampling (the image itself for a factor of 1).
+     * Done once, so that painting never scales.
+     */
+    public static Image scaleImage(Image image, int factor) {
+        if (factor == 1) {
+            return image;
+        }
+        int width = image.getWidth(), height = image.getHeight();
+        int[] row = new int[width];
+        int[] scaled = new int[width * factor * height * factor];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(row, 0, width, 0, y, width, 1);
+            int offset = y * factor * width * factor;
+            for (int x = 0; x < width; x++) {
+                for (int i = 0; i < factor; i++) {
+                    scaled[offset + x * factor + i] = row[x];
+                }
+            }
+            // Copy the scaled row to the next ones
+            for (int i = 1; i < factor; i++) {
+                System.arraycopy(scaled, offset, scaled, offset + i * width * factor, width * factor);
+            }
+        }
+        return Image.createRGBImage(scaled, width * factor, height * factor, true);
+    }
+
+    /** Number of bytes of the frames image (as 32 bits pixels), and of its decoded pixels and masks */
+    public int getMemorySize() {
+        return 4 * frames.getWidth() * frames.getHeight() + (sheet != null ? sheet.getMemorySize() : 0);
+    }
+
+    /** Decoded pixels and masks of the frames (see GameSpriteSheet) */
+    public GameSpriteSheet getSheet() {
+        if (sheet == null) {
+            int imageWidth = frames.getWidth(), imageHeight = frames.getHeight();
+            int[] pixels = new int[imageWidth * imageHeight];
+            frames.getRGB(pixels, 0, imageWidth, 0, 0, imageWidth, imageHeight);
+            sheet = new GameSpriteSheet(pixels, imageWidth, imageHeight, frameWidth, frameHeight, refX, refY);
+        }
+        return sheet;
+    }
+
     /** Paint a given frame of this sprite at a given position in pixels */
     public final boolean paint(Graphics g, int frameNumber, int x, int y) {
         x -= refX;
@@ -0,0 +1,77 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+/**
+ * Decoded frames of a sprite: pixels of the frames image (ARGB), and run-length masks of the opaque pixels
+ * of each frame. Drawn into a GameFramebuffer, without lcdui, so that desktop tools share the game's composition.
+ */
+class GameSpriteSheet {
+
+    /** Pixels of the frames image, one row after the other */
+    public final int[] pixels;
+    /** Width of the frames image in pixels */
+    public final int imageWidth;
+    /** Dimensions of a single frame in pixels */
+    public final int frameWidth, frameHeight;
+    /** Number of frames in a row of the image, and in total */
+    public final int framesCountX, framesCount;
+    /** Origin within each frame in pixels */
+    public final int refX, refY;
+    /** Run-length masks of each frame: for each row, the number of runs, then the first column and length of each run */
+    private final short[][] masks;
+
+    /** Decode the masks of the frames of an image given as pixels */
+    GameSpriteSheet(int[] pixels, int imageWidth, int imageHeight, int frameWidth, int frameHeight, int refX, int refY) {
+        this.pixels = pixels;
+        this.imageWidth = imageWidth;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.refX = refX;
+        this.refY = refY;
+        framesCountX = imageWidth / frameWidth;
+        framesCount = framesCountX * (imageHeight / frameHeight);
+        short[] runs = new short[frameHeight * (frameWidth + 2)];
+        masks = new short[framesCount][];
+        for (int frameNumber = 0; frameNumber < framesCount; frameNumber++) {
+            int offset = getPixelsOffset(frameNumber), length = 0;
+            for (int y = 0; y < frameHeight; y++) {
+                int countIndex = length++;
+                runs[countIndex] = 0;
+                for (int x = 0; x < frameWidth; x++) {
+                    if ((pixels[offset + y * imageWidth + x] & 0xff000000) == 0) {
+                        continue;
+                    }
+                    int start = x;
+                    while (x < frameWidth && (pixels[offset + y * imageWidth + x] & 0xff000000) != 0) {
+                        x++;
+                    }
+                    runs[length++] = (short) start;
+                    runs[length++] = (short) (x - start);
+                    runs[countIndex]++;
+                }
+            }
+            masks[frameNumber] = new short[length];
+            System.arraycopy(runs, 0, masks[frameNumber], 0, length);
+        }
+    }
+
+    /** Number of bytes of the pixels and masks */
+    public int getMemorySize() {
+        int size = 4 * pixels.length;
+        for (int i = 0; i < framesCount; i++) {
+            size += 2 * masks[i].length;
+        }
+        return size;
+    }
+
+    /** Offset of the top left pixel of a given frame in the pixels */
+    public int getPixelsOffset(int frameNumber) {
+        return (frameNumber / framesCountX) * frameHeight * imageWidth + (frameNumber % framesCountX) * frameWidth;
+    }
+
+    /** Run-length mask of the opaque pixels of a given frame */
+    public short[] getMask(int frameNumber) {
+        return masks[frameNumber];
+    }
+}
@@ -2,10 +2,9 @@ package org.loderunner;
 
 /* Copyright � 2006 - Fabien GIGANTE */
 
-import java.util.*;
 import java.io.*;
 import javax.microedition.lcdui.*;
-import javax.microedition.rms.RecordStoreException;
+import javax.microedition.rms.*;
 
 /**
  * Specialized GameCanvas used to implement the Lode Runner game.
@@ -14,6 +13,14 @@ class LodeRunnerCanvas extends GameCanvas {
 
     /** Game name use for store persistency */
     private static final String GAME_NAME = "LodeRunner";
+    /** Store name of the last session's replay log */
+    private static final String REPLAY_STORE_NAME = "LodeRunnerReplay";
+    /** Store name of the state of the stage in play (see LodeRunnerStage.serialize) */
+    private static final String STATE_STORE_NAME = "LodeRunnerState";
+    /** Session being replayed (null when playing) */
+    private LodeRunnerReplay replay = null;
+    /** Level played before the replay */
+    private int levelBeforeReplay;
     /** Game splash screen */
     private GameSprite splashScreen = null;
     /** Message to display when game is paused */
@@ -26,8 +33,35 @@ class LodeRunnerCanvas extends GameCanvas {
     public int level = 0;
     /** Current stage, when game is in progress */
     private LodeRunnerStage stage = null;
+    /** Renderer of the current stage */
+    private LodeRunnerRenderer renderer = null;
+    /** Stage loading is done in a separated thread */
+    private Thread loadingThread = null;
+    /** Size of the player inputs queue */
+    private static final int INPUTS_QUEUE_SIZE = 8;
+    /** Player inputs queued by key events, consumed one per tick by the game loop */
+    private int[] inputs = new int[INPUTS_QUEUE_SIZE];
+    /** Number of inputs queued and consumed so far */
+    private volatile int inputsQueued = 0, inputsConsumed = 0;
+    /** Game loop task, while the game is running */
+    private GameLoopTask gameLoop = null;
     private int newLevel;
     private byte[] levelStatuses = new byte[LodeRunnerStage.MAX_LEVELS];
+    /**
+     * Vilains' AI difficulty (one of the LodeRunnerPathfinder.DIFFICULTY_* constants), applied to the stage
+     * by the game loop whenever they differ (see GameLoopTask.step)
+     */
+    private volatile int difficulty = LodeRunnerPathfinder.DIFFICULTY_EASY;
+    /** Successive turbo modes (see GameCanvas.turbo) */
+    private static final int[] TURBO_MODES = {1, 4, 16, TURBO_UNBOUNDED};
+    /** Index of the current turbo mode */
+    private int turboMode = 0;
+    /** Rendering mode of the stage (one of the LodeRunnerRenderer.MODE_* constants) */
+    private int renderMode = LodeRunnerRenderer.MODE_LCDUI;
+    /** Print the rewind, pathfinder, game loop, animation and rendering statistics when the game pauses (development builds only) */
+    private static final boolean PRINT_STATISTICS = false;
+    /** Names of the AI difficulties */
+    private static final String[] DIFFICULTY_NAMES = {"Easy", "Normal", "Hard"};
 
     ;
     private static final byte STATUS_DONE = 1;
@@ -55,23 +89,35 @@ class LodeRunnerCanvas extends GameCanvas {
             loadFromStore(GAME_NAME);
         } catch (Exception e) {
         }
-        // Load stage with current level
+        // Resume the stage in play, or load stage with current level
         try {
-            stage = new LodeRunnerStage(this);
-            stage.loadFromResource();
+            stage = new LodeRunnerStage();
+            stage.rewind = new LodeRunnerRewind(stage);
+            renderer = new LodeRunnerRenderer(stage, LodeRunnerRenderer.getScale(getWidth(), getHeight()));
+            renderer.setMode(renderMode);
+            setDisplayRate();
+            if (!loadStageState()) {
+                loadStage();
+            }
         } catch (Exception e) {
         }
         needsRepaint = REPAINT_ALL;
     }
 
-    /** Implement game serialization (level, lifes) */
+    /** Implement game serialization (level, lifes, level statuses, difficulty, rendering mode) */
     public void serializeState(DataOutput output) throws IOException {
         output.writeInt(level);
         output.writeInt(lifes);
         output.write(levelStatuses);
+        output.writeInt(difficulty);
+        // The renderer falls back to lcdui when the framebuffer cannot be allocated
+        if (renderer != null) {
+            renderMode = renderer.getMode();
+        }
+        output.writeInt(renderMode);
     }
 
-    /** Implement game deserialization (level, lifes) */
+    /** Implement game deserialization (level, lifes, level statuses, difficulty, rendering mode) */
     public void deserializeState(DataInput input) throws IOException {
         level = input.readInt();
         lifes = input.readInt();
@@ -79,11 +125,30 @@ class LodeRunnerCanvas extends GameCanvas {
         if (levelStatuses == null || levelStatuses.length != LodeRunnerStage.MAX_LEVELS) {
             levelStatuses = new byte[LodeRunnerStage.MAX_LEVELS];
         }
+        // Difficulty was not saved by older versions
+        try {
+            difficulty = input.readInt();
+        } catch (EOFException e) {
+            difficulty = LodeRunnerPathfinder.DIFFICULTY_EASY;
+        }
+        if (difficulty < 0 || difficulty >= LodeRunnerPathfinder.DIFFICULTIES) {
+            difficulty = LodeRunnerPathfinder.DIFFICULTY_EASY;
+        }
+        // Rendering mode was not saved by older versions
+        try {
+            renderMode = input.readInt();
+        } catch (EOFException e) {
+            renderMode = LodeRunnerRenderer.MODE_LCDUI;
+        }
+        if (renderMode < LodeRunnerRenderer.MODE_LCDUI || renderMode > LodeRunnerRenderer.MODE_AUTO) {
+            renderMode = LodeRunnerRenderer.MODE_LCDUI;
+        }
 
     }
 
     private void painTopMessage(Graphics g) {
-        paintLeft(g, -1, "Level: " + format3(level + 1), 0);
+        hud.clear().append("Level: ").append(level + 1, 3);
+        paintLeft(g, -1, null, 0);
         paintRight(g, -1, "0=Menu", 0);
     }
 
@@ -129,13 +194,15 @@ class LodeRunnerCanvas extends GameCanvas {
         }
     }
     boolean clearAfterPause = false;
+    /** Head-up display text and labels */
+    private GameHud hud = new GameHud();
+    /** Screen area of the next repaint (see requestRepaint) */
+    private int[] repaintArea = new int[4];
 
     /** Render the game canvas */
     public void paint(Graphics g) {
         // Render the stage
         if (stage != null) {
-            stage.spriteSize = LodeRunnerStage.SPRITE_NORMAL;
-            stage.paint(g);
             if (isPaused || !stage.isLoaded) {
                 clearAfterPause = true;
 
@@ -146,11 +213,11 @@ class LodeRunnerCanvas extends GameCanvas {
                 g.fillRect(0, 0, w0, h0);
 
                 // Render the stage mini-map
-                stage.spriteSize = LodeRunnerStage.SPRITE_SMALL;
-                stage.paint(g);
+                renderer.spriteSize = LodeRunnerRenderer.SPRITE_SMALL;
+                renderer.paint(g);
 
-                int cx = LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.SPRITE_WIDTH[stage.spriteSize];
-                int cy = LodeRunnerStage.STAGE_HEIGHT * LodeRunnerStage.SPRITE_HEIGHT[stage.spriteSize];
+                int cx = LodeRunnerStage.STAGE_WIDTH * renderer.spriteWidth[renderer.spriteSize];
+                int cy = LodeRunnerStage.STAGE_HEIGHT * renderer.spriteHeight[renderer.spriteSize];
                 int x = (w0 - cx) / 2, y = (h0 - cy) / 2;
                 if (x > 10) {
                     x = 10;
@@ -159,40 +226,46 @@ class LodeRunnerCanvas extends GameCanvas {
                 // Render the message or splash screen
                 paintMessage(g, w0, y);
                 // Display game information
-                Font font = Font.getDefaultFont();
+                Font font = hud.font;
                 g.setFont(font);
                 g.setColor(0x00ffffff);
-                spaceBetweenLines = LodeRunnerStage.SPRITE_HEIGHT[LodeRunnerStage.SPRITE_NORMAL];
+                spaceBetweenLines = renderer.spriteHeight[LodeRunnerRenderer.SPRITE_NORMAL];
                 if (spaceBetweenLines < font.getHeight()) {
                     spaceBetweenLines = font.getHeight();
                 }
                 int startY = y + cy + 3;
-                if (getHeight() - startY - 4 * spaceBetweenLines < 0) {
+                if (getHeight() - startY - 5 * spaceBetweenLines < 0) {
                     g.setColor(0x00888888);
-                    for (int i = getHeight() - 4 * spaceBetweenLines; i < startY; i += 2) {
+                    for (int i = getHeight() - 5 * spaceBetweenLines; i < startY; i += 2) {
                         g.drawLine(0, i, getWidth(), i);
                     }
-                    startY = getHeight() - 4 * spaceBetweenLines;
+                    startY = getHeight() - 5 * spaceBetweenLines;
                     g.setColor(0x00ffffff);
                 }
-                paintLeft(g, LodeRunnerStage.TILE_LADDER, "Level " + format3(level + 1), startY);
-                paintRight(g, LodeRunnerStage.TILE_HERO, "x" + Integer.toString(lifes), startY);
+                hud.clear().append("Level ").append(level + 1, 3);
+                paintLeft(g, LodeRunnerStage.TILE_LADDER, null, startY);
+                hud.clear().append("x").append(lifes, 1);
+                paintRight(g, LodeRunnerStage.TILE_HERO, null, startY);
+                hud.draw(g, DIFFICULTY_NAMES[difficulty], w0 / 2, startY, Graphics.TOP | Graphics.HCENTER);
 
                 // Display stage information
                 if (stage.isLoaded) {
-                    paintLeft(g, LodeRunnerStage.TILE_CHEST, Integer.toString(stage.hero == null ? 0 : stage.hero.nChests) + "/" + Integer.toString(stage.nChests), startY + spaceBetweenLines);
-                    paintRight(g, LodeRunnerStage.TILE_MONK, "x" + Integer.toString(stage.vilains.size()), startY + spaceBetweenLines);
+                    hud.clear().append(renderer.view.heroChests, 1).append("/").append(renderer.view.stageChests, 1);
+                    paintLeft(g, LodeRunnerStage.TILE_CHEST, null, startY + spaceBetweenLines);
+                    hud.clear().append("x").append(renderer.view.vilainsCount, 1);
+                    paintRight(g, LodeRunnerStage.TILE_MONK, null, startY + spaceBetweenLines);
                     if (levelStatuses[level] == STATUS_DONE) {
                         paintCenter(g, "Done!", startY + spaceBetweenLines, w0);
                     }
                 } else {
                     g.setColor(0x00ffff00);
-                    g.drawString("Loading...", x + cx / 2, y + (cy - font.getHeight()) / 2, Graphics.TOP | Graphics.HCENTER);
+                    hud.draw(g, "Loading...", x + cx / 2, y + (cy - font.getHeight()) / 2, Graphics.TOP | Graphics.HCENTER);
                     g.setColor(0x001463af);
-                    g.drawString("� 2006 - Fabien GIGANTE", w0 / 2, h0 - 2, Graphics.HCENTER | Graphics.BOTTOM);
+                    hud.draw(g, "� 2006 - Fabien GIGANTE", w0 / 2, h0 - 2, Graphics.HCENTER | Graphics.BOTTOM);
                 }
                 paintLeft(g, -1, "Fire=Play", startY + spaceBetweenLines * 2);
                 paintRight(g, -1, "#=Exit", startY + spaceBetweenLines * 2);
+                hud.draw(g, LodeRunnerRenderer.MODE_NAMES[renderer.getMode()], w0 / 2, startY + spaceBetweenLines * 3, Graphics.TOP | Graphics.HCENTER);
                 if (getWidth() > 160) {
                     paintSoftLeft(g, -1, "Next Level");
                     paintSoftRight(g, -1, "Suicide");
@@ -203,6 +276,8 @@ class LodeRunnerCanvas extends GameCanvas {
 
 
             } else {
+                renderer.spriteSize = LodeRunnerRenderer.SPRITE_NORMAL;
+                renderer.paint(g);
                 if (clearAfterPause) {
                     clearAfterPause = false;
                     g.setColor(0x000000);
@@ -211,18 +286,39 @@ class LodeRunnerCanvas extends GameCanvas {
                     painTopMessage(g);
                     paintSoftMenu(g);
                 }
-                if (stage != null && stage.isMessageAtTop()
+                if (stage != null && renderer.isMessageAtTop()
                         && getHeight() >= 208 && getHeight() < 320) {
                     g.setColor(0x00ffffff);
                     painTopMessage(g);
                     paintSoftMenu(g);
 
                 }
+                if (turbo != 1) {
+                    paintTurbo(g);
+                }
             }
         }
 
     }
 
+    /**
+     * Prepare the next frame of the stage, and repaint only its changed areas (see LodeRunnerRenderer.prepareFrame),
+     * unless the screen shows more than the stage in play
+     */
+    protected boolean requestRepaint(int cause) {
+        if (stage == null) {
+            return super.requestRepaint(cause);
+        }
+        boolean isPartial = stage.isLoaded && !isPaused && !clearAfterPause && turbo == 1
+                && !(renderer.isMessageAtTop() && getHeight() >= 208 && getHeight() < 320);
+        if (!renderer.prepareFrame(getWidth(), getHeight(), isPartial)) {
+            return false;
+        }
+        renderer.getRepaintArea(repaintArea);
+        repaint(repaintArea[0], repaintArea[1], repaintArea[2], repaintArea[3]);
+        return true;
+    }
+
     private void paintSoftMenu(Graphics g) {
         paintSoftLeft(g, -1, "<= Fire ");
         paintSoftRight(g, -1, "Fire =>");
@@ -231,36 +327,54 @@ class LodeRunnerCanvas extends GameCanvas {
     /** Handle game actions */
     protected void gameAction(int actionCode) {
 
-        if (!stage.isLoaded || stage.hero == null) {
+        if (!stage.isLoaded) {
             return;
         }
         switch (actionCode) {
             case UP:
-                stage.hero.requestMove(LodeRunnerCharacter.MOVE_CLIMB_UP);
+                queueInput(LodeRunnerCharacter.MOVE_CLIMB_UP);
                 break;
             case DOWN:
-                stage.hero.requestMove(LodeRunnerCharacter.MOVE_CLIMB_DOWN);
+                queueInput(LodeRunnerCharacter.MOVE_CLIMB_DOWN);
                 break;
             case LEFT:
-                stage.hero.requestMove(LodeRunnerCharacter.MOVE_RUN_LEFT);
+                queueInput(LodeRunnerCharacter.MOVE_RUN_LEFT);
                 break;
             case RIGHT:
-                stage.hero.requestMove(LodeRunnerCharacter.MOVE_RUN_RIGHT);
+                queueInput(LodeRunnerCharacter.MOVE_RUN_RIGHT);
                 break;
             case GAME_A:
             case GAME_C:
-                stage.hero.requestMove(LodeRunnerHero.MOVE_DIG_LEFT);
+                queueInput(LodeRunnerHero.MOVE_DIG_LEFT);
                 break;
             case GAME_B:
             case GAME_D:
-                stage.hero.requestMove(LodeRunnerHero.MOVE_DIG_RIGHT);
+                queueInput(LodeRunnerHero.MOVE_DIG_RIGHT);
                 break;
             case FIRE:
-                stage.hero.requestMove(stage.hero.lookLeft ? LodeRunnerHero.MOVE_DIG_LEFT : LodeRunnerHero.MOVE_DIG_RIGHT);
+                queueInput(LodeRunnerStage.INPUT_DIG);
                 break;
         }
     }
 
+    /** Queue a player input for the game loop (ignored if the queue is full) */
+    private void queueInput(int input) {
+        if (inputsQueued - inputsConsumed < INPUTS_QUEUE_SIZE) {
+            inputs[inputsQueued % INPUTS_QUEUE_SIZE] = input;
+            inputsQueued++;
+        }
+    }
+
+    /** Get the next queued player input, or INPUT_NONE */
+    private int pollInput() {
+        if (inputsConsumed == inputsQueued) {
+            return LodeRunnerStage.INPUT_NONE;
+        }
+        int input = inputs[inputsConsumed % INPUTS_QUEUE_SIZE];
+        inputsConsumed++;
+        return input;
+    }
+
     /**
      * Get the game action associated with the given key code of the device.
      * Overloaded to cancel button actions when resuming a paused game.
@@ -284,6 +398,10 @@ class LodeRunnerCanvas extends GameCanvas {
     public void keyPressed(int keyCode) {
         if (!isPaused && keyCode == KEY_NUM0) {
             pause();
+        } else if (!isPaused && keyCode == KEY_STAR) {
+            changeTurbo();
+        } else if (!isPaused && keyCode == KEY_POUND && stage.isLoaded) {
+            queueInput(LodeRunnerStage.INPUT_REWIND);
         } else if (isPaused && getGameAction(keyCode) == FIRE && keyCode != KEY_NUM5) {
             levelStatuses[level] = STATUS_NOT_DONE;
             resume();
@@ -295,6 +413,13 @@ class LodeRunnerCanvas extends GameCanvas {
             clearDoneLevels();
         } else if (isPaused && keyCode == KEY_POUND) {
             endGame();
+        } else if (isPaused && keyCode != KEY_NUM2 && keyCode != KEY_NUM8
+                && (getGameAction(keyCode) == UP || getGameAction(keyCode) == DOWN)) {
+            changeDifficulty(getGameAction(keyCode) == UP ? 1 : -1);
+        } else if (isPaused && keyCode != KEY_NUM6 && getGameAction(keyCode) == RIGHT) {
+            startReplay();
+        } else if (isPaused && keyCode != KEY_NUM4 && getGameAction(keyCode) == LEFT) {
+            changeRenderMode();
         } else if (isPaused) {
             int number = -1;
 
@@ -352,6 +477,16 @@ class LodeRunnerCanvas extends GameCanvas {
 
     public synchronized void pause() {
         super.pause();
+        if (gameLoop != null) {
+            if (PRINT_STATISTICS) {
+                System.out.println("Rewind: " + stage.rewind.getStatistics());
+                System.out.println("Pathfinder: " + stage.pathfinder.getStatistics());
+                System.out.println("Game loop: " + gameLoop.getStatistics());
+                System.out.println("Animation: " + getFrameStatistics());
+                System.out.println("Rendering: " + renderer.getStatistics());
+            }
+            gameLoop = null;
+        }
         try {
             saveToStore(GAME_NAME);
         } catch (IOException ex) {
@@ -359,6 +494,7 @@ class LodeRunnerCanvas extends GameCanvas {
         } catch (RecordStoreException ex) {
             ex.printStackTrace();
         }
+        saveStageState();
         this.newLevel = level % LodeRunnerStage.MAX_LEVELS + 1;
     }
 
@@ -371,6 +507,59 @@ class LodeRunnerCanvas extends GameCanvas {
         }
     }
 
+    /**
+     * In real time, render the frames at the display rate, with the characters moving between the steps
+     * (see LodeRunnerRenderer.computePositions). In turbo mode, render once per step duration at most.
+     */
+    private void setDisplayRate() {
+        framePeriod = turbo == 1 ? DISPLAY_MILLISEC : FRAMERATE_MILLISEC;
+        renderer.interpolationMillis = turbo == 1 ? FRAMERATE_MILLISEC : 0;
+    }
+
+    /** Render frames between the steps while the characters are moving */
+    protected boolean needsAnimation() {
+        return renderer != null && !isPaused && renderer.isAnimating();
+    }
+
+    /** Select the next turbo mode */
+    private void changeTurbo() {
+        turboMode = (turboMode + 1) % TURBO_MODES.length;
+        turbo = TURBO_MODES[turboMode];
+        setDisplayRate();
+        renderer.invalidate();
+        needsRepaint = REPAINT_ALL;
+    }
+
+    /** Render the turbo mode and the achieved ticks per second */
+    private void paintTurbo(Graphics g) {
+        GameLoopTask task = gameLoop;
+        hud.clear();
+        if (turbo == TURBO_UNBOUNDED) {
+            hud.append("Max");
+        } else {
+            hud.append("x").append(turbo, 1);
+        }
+        hud.append(" ").append(task == null ? 0 : task.ticksPerSecond, 1).append(" t/s");
+        int textWidth = hud.getWidth(null);
+        g.setColor(0);
+        g.fillRect(getWidth() - textWidth - 4, 0, textWidth + 4, hud.font.getHeight());
+        g.setColor(0x00ffff00);
+        hud.draw(g, null, getWidth() - 2, 0, Graphics.TOP | Graphics.RIGHT);
+    }
+
+    /** Select the next (or previous) vilains' AI difficulty */
+    private void changeDifficulty(int step) {
+        difficulty = (difficulty + step + LodeRunnerPathfinder.DIFFICULTIES) % LodeRunnerPathfinder.DIFFICULTIES;
+        needsRepaint = REPAINT_ALL;
+    }
+
+    /** Select the next rendering mode of the stage (see LodeRunnerRenderer.getPaintMode) */
+    private void changeRenderMode() {
+        renderMode = (renderer.getMode() + 1) % LodeRunnerRenderer.MODE_NAMES.length;
+        renderer.setMode(renderMode);
+        needsRepaint = REPAINT_ALL;
+    }
+
     private void endGame() {
 
         midlet.destroyApp(true);
@@ -379,11 +568,9 @@ class LodeRunnerCanvas extends GameCanvas {
 
     private void loadNewLevel() {
         pauseMessage = null;
+        replay = null;
         this.level = newLevel - 1;
-        try {
-            this.stage.loadFromResource();
-        } catch (Exception e) {
-        }
+        loadStage();
 
     }
 
@@ -401,13 +588,14 @@ class LodeRunnerCanvas extends GameCanvas {
         paintRight(g, tileIndex, string, h0 - spaceBetweenLines);
     }
 
+    /** Render a label (or the HUD text if null) on the left, after a tile if any */
     private void paintLeft(Graphics g, int tileIndex, String string, int y) {
         if (tileIndex >= 0) {
-            int ySprite = y + (Font.getDefaultFont().getHeight() - LodeRunnerStage.SPRITE_HEIGHT[LodeRunnerStage.SPRITE_NORMAL]) / 2;
-            stage.sprites[LodeRunnerStage.SPRITE_NORMAL].paint(g, LodeRunnerStage.spriteMap[tileIndex], 4, ySprite);
-            g.drawString(string, 5 + LodeRunnerStage.SPRITE_WIDTH[LodeRunnerStage.SPRITE_NORMAL], y, Graphics.TOP | Graphics.LEFT);
+            int ySprite = y + (hud.font.getHeight() - renderer.spriteHeight[LodeRunnerRenderer.SPRITE_NORMAL]) / 2;
+            renderer.sprites[LodeRunnerRenderer.SPRITE_NORMAL].paint(g, LodeRunnerRenderer.spriteMap[tileIndex], 4, ySprite);
+            hud.draw(g, string, 5 + renderer.spriteWidth[LodeRunnerRenderer.SPRITE_NORMAL], y, Graphics.TOP | Graphics.LEFT);
         } else {
-            g.drawString(string, 5, y, Graphics.TOP | Graphics.LEFT);
+            hud.draw(g, string, 5, y, Graphics.TOP | Graphics.LEFT);
         }
     }
 
@@ -421,33 +609,23 @@ class LodeRunnerCanvas extends GameCanvas {
 
     private void paintRight(Graphics g, int tileIndex, String string, int y, int screenWidth) {
         if (tileIndex >= 0) {
-            int ySprite = y + (Font.getDefaultFont().getHeight() - LodeRunnerStage.SPRITE_HEIGHT[LodeRunnerStage.SPRITE_NORMAL]) / 2;
-            g.drawString(string, screenWidth - 4, y, Graphics.TOP | Graphics.RIGHT);
-            int textWidth = Font.getDefaultFont().stringWidth(string);
-            stage.sprites[LodeRunnerStage.SPRITE_NORMAL].paint(g, LodeRunnerStage.spriteMap[tileIndex], screenWidth - 4 - LodeRunnerStage.SPRITE_WIDTH[LodeRunnerStage.SPRITE_NORMAL] - textWidth, ySprite);
+            int ySprite = y + (hud.font.getHeight() - renderer.spriteHeight[LodeRunnerRenderer.SPRITE_NORMAL]) / 2;
+            hud.draw(g, string, screenWidth - 4, y, Graphics.TOP | Graphics.RIGHT);
+            int textWidth = hud.getWidth(string);
+            renderer.sprites[LodeRunnerRenderer.SPRITE_NORMAL].paint(g, LodeRunnerRenderer.spriteMap[tileIndex], screenWidth - 4 - renderer.spriteWidth[LodeRunnerRenderer.SPRITE_NORMAL] - textWidth, ySprite);
         } else {
-            g.drawString(string, screenWidth - 4, y, Graphics.TOP | Graphics.RIGHT);
+            hud.draw(g, string, screenWidth - 4, y, Graphics.TOP | Graphics.RIGHT);
         }
     }
 
     private void paintCenter(Graphics g, String string, int y, int screenWidth) {
 
-        int stringWidth = Font.getDefaultFont().stringWidth(string);
-        int height = Font.getDefaultFont().getHeight();
+        int stringWidth = hud.getWidth(string);
+        int height = hud.font.getHeight();
         g.setColor(0x008800);
         g.fillRoundRect((screenWidth - stringWidth) / 2 - 2, y - 2, stringWidth + 4, height + 4, 8, 800);
         g.setColor(0xffffff);
-        g.drawString(string, screenWidth / 2, y, Graphics.TOP | Graphics.HCENTER);
-    }
-
-    private String format3(int number) {
-        if (number < 10) {
-            return "00" + number;
-        }
-        if (number < 100) {
-            return "0" + number;
-        }
-        return Integer.toString(number);
+        hud.draw(g, string, screenWidth / 2, y, Graphics.TOP | Graphics.HCENTER);
     }
 
     private void clearDoneLevels() {
@@ -480,65 +658,101 @@ class LodeRunnerCanvas extends GameCanvas {
     }
 
     /**
-     * Define the hero's heartBeat as a game event task.
+     * The Lode Runner game loop, as a fixed time step game event task.
+     * Every tick, the stage runs one step with the next queued player input, or with the selected
+     * AI difficulty when the stage does not use it yet.
+     * The stage publishes its render snapshot after the last tick of each poll.
      */
-    protected class HeroHeartbeatTask extends RepaintTask {
+    protected class GameLoopTask extends FixedStepTask {
 
-        /** Scheduled every frame */
-        public final static int PERIOD = FRAMERATE_MILLISEC;
+        /** A tick lasts one frame */
+        GameLoopTask() {
+            super(FRAMERATE_MILLISEC);
+        }
 
-        /** Heartbeat */
-        public void run() {
-            if (stage != null && stage.isLoaded && stage.hero != null) {
-                stage.hero.heartBeat();
-                if (stage.endCompleted) {
-                    stageOver(true);
-                } else if (stage.endHeroDied) {
+        /** Run one tick of the game */
+        protected void step(long tick) {
+            if (stage == null || !stage.isLoaded) {
+                // Drop the inputs made while loading
+                inputsConsumed = inputsQueued;
+                return;
+            }
+            if (replay != null) {
+                // Player inputs are ignored while replaying
+                pollInput();
+                if (stage.tick >= replay.getEndTick()) {
                     stageOver(false);
+                    return;
                 }
+                stage.step(replay.getInput(stage.tick));
+            } else if (stage.pathfinder.getDifficulty() != difficulty) {
+                // Apply the selected difficulty as an input, so that the change is recorded (queued inputs wait a tick)
+                stage.step(LodeRunnerStage.INPUT_DIFFICULTY + difficulty);
+            } else {
+                stage.step(pollInput());
+            }
+            if (stage.endCompleted) {
+                stageOver(true);
+                return;
+            } else if (stage.endHeroDied) {
+                stageOver(false);
+                return;
+            }
+        }
+
+        /** Publish the result of the last step for the rendering */
+        protected void endSteps() {
+            if (stage != null && stage.isLoaded && !isPaused) {
+                stage.publishSnapshot();
             }
-            super.run();
         }
     }
 
-    /**
-     * Define the vilains' heartBeat as a game event task.
-     */
-    protected class VilainsHeartbeatTask extends RepaintTask {
+    /** Loading thread for asynchroneous stage building */
+    private class LoadingThread extends Thread {
+
+        /** Level to load, its random seed and AI difficulty */
+        private int level, difficulty;
+        private long seed;
 
-        /** Scheduled every 2 frames */
-        public final static int PERIOD = 2 * FRAMERATE_MILLISEC;
+        LoadingThread(int level, long seed, int difficulty) {
+            this.level = level;
+            this.seed = seed;
+            this.difficulty = difficulty;
+        }
 
-        /** Heartbeat */
+        /** Entry point of this asynchroneous loading thread */
         public void run() {
-            // Loop on every vilain
-            if (stage != null && stage.isLoaded) {
-                for (Enumeration e = stage.vilains.elements(); e.hasMoreElements();) {
-                    ((LodeRunnerVilain) e.nextElement()).heartBeat();
-                }
+            try {
+                stage.pathfinder.setDifficulty(difficulty);
+                stage.loadFromResource(level, seed);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            super.run();
+            loadingThread = null;
+            needsRepaint = REPAINT_ALL;
         }
     }
 
-    /**
-     * Define the stage's heartBeat as a game event task.
-     */
-    protected class StageHeartbeatTask extends RepaintTask {
-
-        /** Scheduled every 2 frames */
-        public final static int PERIOD = 2 * FRAMERATE_MILLISEC;
+    /** Load the stage of the current level, asynchroneously */
+    private void loadStage() {
+        // Every game is different
+        loadStage(System.currentTimeMillis(), difficulty);
+    }
 
-        /** Heartbeat */
-        public void run() {
-            // Loop on every hole
-            if (stage != null && stage.isLoaded) {
-                for (Enumeration e = stage.holes.elements(); e.hasMoreElements();) {
-                    ((LodeRunnerHole) e.nextElement()).heartBeat();
-                }
+    /** Load the stage of the current level with a given random seed and AI difficulty, asynchroneously */
+    private void loadStage(long seed, int difficulty) {
+        // Wait for the previous loading attempt
+        Thread previousThread = loadingThread;
+        if (previousThread != null) {
+            try {
+                previousThread.join();
+            } catch (InterruptedException e) {
             }
-            super.run();
         }
+        stage.unload();
+        loadingThread = new LoadingThread(level, seed, difficulty);
+        loadingThread.start();
     }
 
     /** Start the Lode Runner game, in pause */
@@ -549,17 +763,13 @@ class LodeRunnerCanvas extends GameCanvas {
 
     /**
      * Resume or start the game.
-     * Lode Runner heartBeats game tasks are scheduled.
+     * The Lode Runner game loop task is scheduled.
      */
     public synchronized void resume() {
         super.resume();
         pauseMessage = null;
-        // Schedule the hero's heartBeat
-        timer.schedule(new HeroHeartbeatTask(), 0, HeroHeartbeatTask.PERIOD);
-        // Schedule the vilains' heartBeat
-        timer.schedule(new VilainsHeartbeatTask(), 0, VilainsHeartbeatTask.PERIOD);
-        // Schedule the stage's heartBeat
-        timer.schedule(new StageHeartbeatTask(), 0, StageHeartbeatTask.PERIOD);
+        gameLoop = new GameLoopTask();
+        timer.scheduleAtFixedRate(gameLoop, 0, FRAMERATE_MILLISEC);
     }
 
     public void nextLevelNotDone() {
@@ -588,10 +798,114 @@ class LodeRunnerCanvas extends GameCanvas {
         }
     }
 
+    /** Save the replay log of the session just over in store */
+    private void saveReplay() {
+        LodeRunnerReplay recording = stage.recording;
+        if (recording == null || replay != null) {
+            return;
+        }
+        recording.finish(stage.tick);
+        try {
+            byte[] record = recording.toByteArray();
+            RecordStore store = RecordStore.openRecordStore(REPLAY_STORE_NAME, true);
+            if (store.getNumRecords() == 0) {
+                store.addRecord(record, 0, record.length);
+            } else {
+                store.setRecord(1, record, 0, record.length);
+            }
+            store.closeRecordStore();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Save the state of the stage in play in store, to be resumed exactly (see loadStageState).
+     * The saved state is deleted when there is no stage in play (loading or over),
+     * and kept as is while replaying, so that the game goes on where it was after the replay.
+     */
+    private void saveStageState() {
+        if (replay != null) {
+            return;
+        }
+        try {
+            if (stage == null || !stage.isLoaded || stage.endCompleted || stage.endHeroDied) {
+                RecordStore.deleteRecordStore(STATE_STORE_NAME);
+                return;
+            }
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            stage.serialize(new DataOutputStream(stream));
+            byte[] record = stream.toByteArray();
+            RecordStore store = RecordStore.openRecordStore(STATE_STORE_NAME, true);
+            if (store.getNumRecords() == 0) {
+                store.addRecord(record, 0, record.length);
+            } else {
+                store.setRecord(1, record, 0, record.length);
+            }
+            store.closeRecordStore();
+        } catch (RecordStoreNotFoundException e) {
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Resume the stage saved in store by saveStageState, if any and still matching the current level */
+    private boolean loadStageState() {
+        try {
+            RecordStore store = RecordStore.openRecordStore(STATE_STORE_NAME, false);
+            byte[] record = store.getRecord(1);
+            store.closeRecordStore();
+            stage.deserialize(new DataInputStream(new ByteArrayInputStream(record)));
+            if (stage.recording.getLevel() == level % LodeRunnerStage.MAX_LEVELS) {
+                return true;
+            }
+            stage.unload();
+        } catch (RecordStoreException e) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /** Load the last session's replay log from store, and prepare its stage for replay */
+    private void startReplay() {
+        try {
+            RecordStore store = RecordStore.openRecordStore(REPLAY_STORE_NAME, false);
+            byte[] record = store.getRecord(1);
+            store.closeRecordStore();
+            replay = LodeRunnerReplay.read(new ByteArrayInputStream(record));
+        } catch (RecordStoreException e) {
+            pauseMessage = "No replay";
+            return;
+        } catch (IOException e) {
+            pauseMessage = e.getMessage();
+            return;
+        }
+        replay.rewind();
+        levelBeforeReplay = level;
+        level = replay.getLevel();
+        pauseMessage = "Replay";
+        loadStage(replay.getSeed(), replay.getDifficulty());
+        needsRepaint = REPAINT_ALL;
+    }
+
     /**
      * Stage is complete, or hero has died
      */
     public void stageOver(boolean hasCompleted) {
+        if (replay != null) {
+            // End of a replay: the game goes on where it was (the stage state saved before the replay is kept by pause)
+            level = levelBeforeReplay;
+            pause();
+            replay = null;
+            pauseMessage = "Replay over";
+            if (!loadStageState()) {
+                loadStage();
+            }
+            needsRepaint = REPAINT_ALL;
+            return;
+        }
+        saveReplay();
         if (!isPaused) {
             levelStatuses[level] = hasCompleted ? STATUS_DONE : STATUS_NOT_DONE;
             pause();
@@ -616,10 +930,7 @@ class LodeRunnerCanvas extends GameCanvas {
             }
         }
         // Load appropriate stage
-        try {
-            stage.loadFromResource();
-        } catch (Exception e) {
-        }
+        loadStage();
         needsRepaint = REPAINT_ALL;
     }
 }
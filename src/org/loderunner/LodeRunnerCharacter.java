@@ -2,7 +2,7 @@ package org.loderunner;
 
 /* Copyright � 2006 - Fabien GIGANTE */
 
-import javax.microedition.lcdui.*;
+import java.io.*;
 
 /**
  * A Lode Runner character evolving within a game stage 
@@ -59,77 +59,81 @@ abstract class LodeRunnerCharacter {
     }
 
     /**
-     * Compute the sprite frame number for painting this character.
-     * keyFrames is a sprite index array of the form :
-     * { FIRST_SPRITE_CLIMB, FIRST_SPRITE_LEFT, FIRST_SPRITE_RIGHT, BEFORE_SECOND_SPRITE_LEFT }
+     * Offsets in a frame table (see buildFrames): falling (by look direction), climbing (by yAdjust),
+     * then hanging on a rope and running (by look direction, move direction and xAdjust)
      */
-    protected int getFrame(int[] keyFrames) {
-        // starting at FIRST_SPRITE_CLIMB
-        // - 5 fall climb frames
-        // - 1 fall frame facing left, 1 fall frame facing right
-        // - 6 rope frames facing right, 6 rope frames facing left
-        int frame;
-        if (yDelta != 0) {
-            if (currentMove == MOVE_FALL_DOWN) {
-                frame = lookLeft ? keyFrames[0] + 5 : keyFrames[0] + 6;
-            } else {
-                frame = keyFrames[0] + (yAdjust + 5) % 5;
-            }
-        } else {
-            if (xDelta >= 0) {
-                frame = (xAdjust + 6) % 6;
-            } else {
-                frame = (6 - xAdjust) % 6;
-            }
-            if (stage.getTileBehavior(xTile, yTile) == LodeRunnerStage.TILE_ROPE) {
-                frame += keyFrames[0] + 7;
-                if (lookLeft) {
-                    frame += 6;
-                }
+    private static final int FRAME_FALL = 0, FRAME_CLIMB = 2, FRAME_ROPE = 7, FRAME_RUN = 35, FRAMES_COUNT = 63;
+    /** Offsets of the look direction and the move direction in the rope and run parts of a frame table */
+    private static final int FRAME_LOOK_LEFT = 14, FRAME_MOVE_LEFT = 7;
+    /** Animation step (0 to 5) of a horizontal move, by move direction and xAdjust */
+    private static final byte[] RUN_STEPS = new byte[14];
+    /** Left position in 1/6 of a tile, relative to the tile, by move direction and xAdjust (see getLeft) */
+    private static final byte[] LEFT_ADJUSTS = new byte[14];
+
+    static {
+        for (int xAdjust = -3; xAdjust <= 3; xAdjust++) {
+            RUN_STEPS[xAdjust + 3] = (byte) ((xAdjust + 6) % 6);
+            RUN_STEPS[FRAME_MOVE_LEFT + xAdjust + 3] = (byte) ((6 - xAdjust) % 6);
+            LEFT_ADJUSTS[xAdjust + 3] = (byte) (xAdjust + (xAdjust + 6) % 2);
+            LEFT_ADJUSTS[FRAME_MOVE_LEFT + xAdjust + 3] = (byte) (xAdjust - (6 - xAdjust) % 2);
+        }
+    }
+
+    /**
+     * Build the frame table of a character, from the sprite indexes of its animations:
+     * starting at firstClimb, 5 climb frames, 1 fall frame facing left, 1 fall frame facing right,
+     * 6 rope frames facing right and 6 rope frames facing left;
+     * the first run frame facing left at firstLeft, and the 5 next ones after beforeSecondLeft;
+     * the 6 run frames facing right starting at firstRight.
+     */
+    protected static byte[] buildFrames(int firstClimb, int firstLeft, int firstRight, int beforeSecondLeft) {
+        byte[] frames = new byte[FRAMES_COUNT];
+        frames[FRAME_FALL] = (byte) (firstClimb + 5);
+        frames[FRAME_FALL + 1] = (byte) (firstClimb + 6);
+        for (int yAdjust = -2; yAdjust <= 2; yAdjust++) {
+            frames[FRAME_CLIMB + yAdjust + 2] = (byte) (firstClimb + (yAdjust + 5) % 5);
+        }
+        for (int i = 0; i < 2 * FRAME_LOOK_LEFT; i++) {
+            int step = RUN_STEPS[i % FRAME_LOOK_LEFT];
+            boolean lookLeft = i >= FRAME_LOOK_LEFT;
+            frames[FRAME_ROPE + i] = (byte) (firstClimb + 7 + step + (lookLeft ? 6 : 0));
+            if (lookLeft && step == 0) {
+                frames[FRAME_RUN + i] = (byte) firstLeft;
             } else {
-                // starting at FIRST_SPRITE_LEFT
-                // - 1 (first) run frame facing left
-                // contining with BEFORE_SECOND_SPRITE_LEFT+1
-                // - 5 (next) run frame facing left
-                // starting at FIRST_SPRITE_RIGHT
-                // - 6 run frames facing right
-                if (lookLeft && frame == 0) {
-                    frame = keyFrames[1];
-                } else if (lookLeft) {
-                    frame += keyFrames[3];
-                } else {
-                    frame += keyFrames[2];
-                }
+                frames[FRAME_RUN + i] = (byte) (step + (lookLeft ? beforeSecondLeft : firstRight));
             }
         }
-        return frame;
+        return frames;
     }
 
-    /** Compute the sprite frame number for painting this character */
-    abstract protected int getFrame();
-
-    /** Get the X center position of this character in pixels */
-    public int getCenterX() {
-        return (6 * xTile + xAdjust + 3) * LodeRunnerStage.SPRITE_WIDTH[stage.spriteSize] / 6;
+    /** Index of the falling frame in a frame table */
+    protected static int getFallIndex(boolean lookLeft) {
+        return FRAME_FALL + (lookLeft ? 0 : 1);
     }
 
-    /** Get the Y center position of this character in pixels */
-    public int getCenterY() {
-        return (5 * yTile + yAdjust + 3) * LodeRunnerStage.SPRITE_HEIGHT[stage.spriteSize] / 5;
+    /** Index of a running frame in a frame table */
+    protected static int getRunIndex(boolean lookLeft, boolean moveLeft, int xAdjust) {
+        return FRAME_RUN + (lookLeft ? FRAME_LOOK_LEFT : 0) + (moveLeft ? FRAME_MOVE_LEFT : 0) + xAdjust + 3;
     }
 
-    /** Get the X left position of this character in pixels */
-    public int getX() {
-        if (xDelta >= 0) {
-            return (6 * xTile + xAdjust + (xAdjust + 6) % 2) * LodeRunnerStage.SPRITE_WIDTH[stage.spriteSize] / 6;
-        } else {
-            return (6 * xTile + xAdjust - (6 - xAdjust) % 2) * LodeRunnerStage.SPRITE_WIDTH[stage.spriteSize] / 6;
+    /** Compute the sprite frame number for painting this character, from its frame table (see buildFrames) */
+    protected int getFrame(byte[] frames) {
+        if (yDelta != 0) {
+            return frames[currentMove == MOVE_FALL_DOWN ? getFallIndex(lookLeft) : FRAME_CLIMB + yAdjust + 2];
+        }
+        int index = getRunIndex(lookLeft, xDelta < 0, xAdjust);
+        if (stage.getTileBehavior(xTile, yTile) == LodeRunnerStage.TILE_ROPE) {
+            index += FRAME_ROPE - FRAME_RUN;
         }
+        return frames[index];
     }
 
-    /** Get the Y top position of this character in pixels */
-    public int getY() {
-        return (5 * yTile + yAdjust) * LodeRunnerStage.SPRITE_HEIGHT[stage.spriteSize] / 5;
+    /** Compute the sprite frame number for painting this character */
+    abstract protected int getFrame();
+
+    /** Get the X left position of this character in 1/6 of a tile */
+    protected int getLeft() {
+        return 6 * xTile + LEFT_ADJUSTS[(xDelta < 0 ? FRAME_MOVE_LEFT : 0) + xAdjust + 3];
     }
 
     /** Set the given move as current for this character. Compute directions for that move. */
@@ -308,6 +312,12 @@ abstract class LodeRunnerCharacter {
     /** Kill this character */
     abstract protected void kill();
 
+    /** Check if this character's next heartBeat will execute a new move (see makeNextMove) */
+    public boolean needsDecision() {
+        return delayBusy == 0 && xAdjust == 0 && yAdjust == 0
+                && stage.getTileBehavior(xTile, yTile) != LodeRunnerStage.TILE_BRICK;
+    }
+
     /**
      * Heartbeat for this character.
      *
@@ -342,9 +352,85 @@ abstract class LodeRunnerCharacter {
         computeNewPosition();
     }
 
-    /** Render this character */
-    public boolean paint(Graphics g) {
-        // Paint appropriate sprite
-        return stage.sprites[stage.spriteSize].paint(g, getFrame(), getX(), getY());
+    /** Write the state of this character (see LodeRunnerStage.serialize) */
+    public void serialize(DataOutput output) throws IOException {
+        output.writeByte(xTile);
+        output.writeByte(yTile);
+        output.writeByte(xAdjust);
+        output.writeByte(yAdjust);
+        output.writeByte(xDelta);
+        output.writeByte(yDelta);
+        output.writeBoolean(lookLeft);
+        output.writeByte(delayBusy);
+        output.writeByte(currentMove);
+        output.writeByte(nextMove);
+        output.writeShort(nChests);
+    }
+
+    /** Read the state of this character written by serialize */
+    public void deserialize(DataInput input) throws IOException {
+        xTile = input.readUnsignedByte();
+        yTile = input.readUnsignedByte();
+        if (xTile >= LodeRunnerStage.STAGE_WIDTH || yTile >= LodeRunnerStage.STAGE_HEIGHT) {
+            throw new IOException("Corrupted stage state: bad position");
+        }
+        xAdjust = input.readByte();
+        yAdjust = input.readByte();
+        if (xAdjust < -3 || xAdjust > 3 || yAdjust < -2 || yAdjust > 2) {
+            throw new IOException("Corrupted stage state: bad position");
+        }
+        xDelta = input.readByte();
+        yDelta = input.readByte();
+        if (xDelta < -1 || xDelta > 1 || yDelta < -1 || yDelta > 1) {
+            throw new IOException("Corrupted stage state: bad position");
+        }
+        lookLeft = input.readBoolean();
+        delayBusy = input.readUnsignedByte();
+        currentMove = input.readUnsignedByte();
+        nextMove = input.readUnsignedByte();
+        if (!isValidMove(currentMove) || !isValidMove(nextMove)) {
+            throw new IOException("Corrupted stage state: bad move");
+        }
+        nChests = input.readUnsignedShort();
+    }
+
+    /** Check that a restored move is one of the moves of this character */
+    protected boolean isValidMove(int move) {
+        return move >= MOVE_NONE && move <= MOVE_FALL_DOWN;
+    }
+
+    /**
+     * Pack the position and moves of this character into an int (see LodeRunnerRewind):
+     * xTile (5 bits), yTile (4 bits), xAdjust and yAdjust (4 bits each), xDelta and yDelta (2 bits each),
+     * lookLeft, then currentMove and nextMove (4 bits each) from bit 23. Bits 22 and 31 are left to subclasses.
+     */
+    protected int packPosition() {
+        return xTile | yTile << 5 | (xAdjust & 0xf) << 9 | (yAdjust & 0xf) << 13 | (xDelta & 0x3) << 17 | (yDelta & 0x3) << 19
+                | (lookLeft ? 1 << 21 : 0) | currentMove << 23 | nextMove << 27;
+    }
+
+    /** Pack the counters of this character into an int: delayBusy (8 bits), then nChests from bit 16. Bits 8-15 are left to subclasses. */
+    protected int packCounters() {
+        return delayBusy | nChests << 16;
+    }
+
+    /** Restore the state packed by packPosition and packCounters */
+    protected void unpack(int position, int counters) {
+        xTile = position & 0x1f;
+        yTile = position >> 5 & 0xf;
+        xAdjust = position << 19 >> 28;
+        yAdjust = position << 15 >> 28;
+        xDelta = position << 13 >> 30;
+        yDelta = position << 11 >> 30;
+        lookLeft = (position & 1 << 21) != 0;
+        currentMove = position >> 23 & 0xf;
+        nextMove = position >> 27 & 0xf;
+        delayBusy = counters & 0xff;
+        nChests = counters >>> 16;
+    }
+
+    /** Add this character's sprite to a render snapshot */
+    public void publish(LodeRunnerSnapshot snapshot) {
+        snapshot.addSprite(getFrame(), getLeft(), 5 * yTile + yAdjust, 6 * xTile + xAdjust + 3, 5 * yTile + yAdjust + 3);
     }
 }
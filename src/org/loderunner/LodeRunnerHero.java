@@ -2,7 +2,7 @@ package org.loderunner;
 
 /* Copyright � 2006 - Fabien GIGANTE */
 
-import javax.microedition.lcdui.*;
+import java.io.*;
 
 /**
  * The Lode Runner hero player character evolving within a game stage.
@@ -16,11 +16,13 @@ class LodeRunnerHero extends LodeRunnerCharacter {
     /** Move type constant for digging right */
     public static final int MOVE_DIG_RIGHT = 8;
     /** Delay in heartbeats of floating messages */
-    private static final int DELAY_MESSAGE = 12;
+    public static final int DELAY_MESSAGE = 12;
+    /** Frame table of the hero's animations (see LodeRunnerCharacter.buildFrames) */
+    private static final byte[] FRAMES = buildFrames(23, 6, 0, 6);
     /** Number of heartBeats before the floating message disapear */
     private int delayMessage;
-    /** Current floating message text */
-    private String currentMessage;
+    /** Chests count shown by the current floating message, as "chests/stage chests" (-1 if none) */
+    private int messageChests = -1;
     private boolean wasShowingMessage;
 
     /** Initialize this hero in the stage */
@@ -32,7 +34,7 @@ class LodeRunnerHero extends LodeRunnerCharacter {
     public void moveToTile(int tileIndex) {
         super.moveToTile(tileIndex);
         delayMessage = 0;
-        currentMessage = null;
+        messageChests = -1;
     }
 
     /** Compute the sprite frame number for painting this hero  */
@@ -45,22 +47,16 @@ class LodeRunnerHero extends LodeRunnerCharacter {
                 return 73;
             }
         }
-        // Get frame from "magic" keys (see LodeRunnerCharacter.getFrame)
-        int[] keyFrames = {23, 6, 0, 6};
-        return getFrame(keyFrames);
+        return getFrame(FRAMES);
     }
 
-    /** Make a floating message appear above this character */
-    protected void sayMessage(String message) {
+    /** Make a floating message with a chests count appear above this character */
+    protected void sayChests(int chests) {
         delayMessage = DELAY_MESSAGE;
-        currentMessage = message;
+        messageChests = chests;
         wasShowingMessage = true;
     }
 
-    public boolean wasShowingMessage() {
-        return wasShowingMessage;
-    }
-
     /** Set the given move as current for this hero. Compute directions for that move. */
     protected void setCurrentMove(int move) {
         super.setCurrentMove(move);
@@ -112,7 +108,7 @@ class LodeRunnerHero extends LodeRunnerCharacter {
     protected boolean takeChest() {
         boolean chestTaken = super.takeChest();
         if (chestTaken) {
-            sayMessage(Integer.toString(nChests) + "/" + Integer.toString(stage.nChests));
+            sayChests(nChests);
             if (nChests == stage.nChests) {
                 stage.enableExit();
             }
@@ -193,13 +189,59 @@ class LodeRunnerHero extends LodeRunnerCharacter {
         }
     }
 
-    /** Render the floating message above this hero */
-    private void paintMessage(Graphics g) {
-        stage.font.drawString(g, currentMessage, getCenterX(), getY() - (DELAY_MESSAGE - delayMessage) * LodeRunnerStage.SPRITE_HEIGHT[stage.spriteSize] / DELAY_MESSAGE / 2, Graphics.HCENTER | Graphics.BOTTOM);
+    /** Chests count shown by the floating message, -1 if none (see sayChests) */
+    public int getMessageChests() {
+        return messageChests;
+    }
+
+    /** Restore the chests count shown by the floating message (see LodeRunnerRewind) */
+    public void setMessageChests(int chests) {
+        messageChests = chests;
+    }
+
+    /** Write the state of this hero, including its floating message */
+    public void serialize(DataOutput output) throws IOException {
+        super.serialize(output);
+        output.writeByte(delayMessage);
+        output.writeBoolean(wasShowingMessage);
+        output.writeShort(messageChests);
+    }
+
+    /** Read the state of this hero written by serialize */
+    public void deserialize(DataInput input) throws IOException {
+        super.deserialize(input);
+        delayMessage = input.readUnsignedByte();
+        wasShowingMessage = input.readBoolean();
+        messageChests = input.readShort();
+        if (messageChests < -1) {
+            throw new IOException("Corrupted stage state: bad message");
+        }
+    }
+
+    /** Check that a restored move is one of the moves of this hero */
+    protected boolean isValidMove(int move) {
+        return super.isValidMove(move) || move == MOVE_DIG_LEFT || move == MOVE_DIG_RIGHT;
     }
 
-    /** Render this hero */
-    public boolean paint(Graphics g) {
+    /** Pack the position and moves of this hero, and whether a message was shown */
+    protected int packPosition() {
+        return super.packPosition() | (wasShowingMessage ? 1 << 31 : 0);
+    }
+
+    /** Pack the counters of this hero, including the floating message delay */
+    protected int packCounters() {
+        return super.packCounters() | delayMessage << 8;
+    }
+
+    /** Restore the state packed by packPosition and packCounters. The floating message chests count is restored apart (see setMessageChests). */
+    protected void unpack(int position, int counters) {
+        super.unpack(position, counters);
+        wasShowingMessage = position < 0;
+        delayMessage = counters >> 8 & 0xff;
+    }
+
+    /** Add this hero's sprites to a render snapshot */
+    public void publish(LodeRunnerSnapshot snapshot) {
         // if this hero is digging...
         if (currentMove == MOVE_DIG_LEFT || currentMove == MOVE_DIG_RIGHT) {
             //... neighboring tiles should be painted accordingly
@@ -230,18 +272,25 @@ class LodeRunnerHero extends LodeRunnerCharacter {
             }
             int xFire = xTile + (lookLeft ? -1 : +1);
             if (frameBlaster != 0) {
-                stage.sprites[stage.spriteSize].paint(g, frameBlaster, xFire * LodeRunnerStage.SPRITE_WIDTH[stage.spriteSize], yTile * LodeRunnerStage.SPRITE_HEIGHT[stage.spriteSize]);
+                snapshot.addTileSprite(frameBlaster, xFire, yTile);
             }
             if (frameMelting != 0) {
-                stage.sprites[stage.spriteSize].paint(g, frameMelting, xFire * LodeRunnerStage.SPRITE_WIDTH[stage.spriteSize], (yTile + 1) * LodeRunnerStage.SPRITE_HEIGHT[stage.spriteSize]);
+                snapshot.addTileSprite(frameMelting, xFire, yTile + 1);
             }
         }
-        // paint hero itself
-        boolean isVisible = super.paint(g);
-        // Render a floating message, if any
-        if (delayMessage > 0 && stage.spriteSize == LodeRunnerStage.SPRITE_NORMAL) {
-            paintMessage(g);
+        // hero itself
+        super.publish(snapshot);
+        snapshot.hasHero = true;
+        snapshot.heroX = getLeft();
+        snapshot.heroY = 5 * yTile + yAdjust;
+        snapshot.heroCenterX = 6 * xTile + xAdjust + 3;
+        snapshot.heroCenterY = 5 * yTile + yAdjust + 3;
+        snapshot.heroChests = nChests;
+        snapshot.heroWasShowingMessage = wasShowingMessage;
+        // Floating message, if any
+        if (delayMessage > 0) {
+            snapshot.heroMessageChests = messageChests;
+            snapshot.heroMessageAge = DELAY_MESSAGE - delayMessage;
         }
-        return isVisible;
     }
 }
@@ -2,7 +2,7 @@ package org.loderunner;
 
 /* Copyright � 2006 - Fabien GIGANTE */
 
-import javax.microedition.lcdui.*;
+import java.io.*;
 
 /**
  * A hole digged into a Lode Runner game stage 
@@ -22,15 +22,49 @@ class LodeRunnerHole {
 
     LodeRunnerHole(LodeRunnerStage stage, int xTile, int yTile) {
         this.stage = stage;
+        reset(xTile, yTile);
+    }
+
+    /** Make this hole a newly digged one, at a given position (holes are reused, see LodeRunnerStage.newHole) */
+    public void reset(int xTile, int yTile) {
         delayBusy = DELAY_REFILL;
         this.xTile = xTile;
         this.yTile = yTile;
     }
 
+    /** Pack the state of this hole into an int: xTile (5 bits), yTile (4 bits), then delayBusy (see LodeRunnerRewind) */
+    public int pack() {
+        return xTile | yTile << 5 | delayBusy << 9;
+    }
+
+    /** Restore the state packed by pack */
+    public void unpack(int state) {
+        xTile = state & 0x1f;
+        yTile = state >> 5 & 0xf;
+        delayBusy = state >> 9;
+    }
+
+    /** Write the state of this hole (see LodeRunnerStage.serialize) */
+    public void serialize(DataOutput output) throws IOException {
+        output.writeByte(xTile);
+        output.writeByte(yTile);
+        output.writeByte(delayBusy);
+    }
+
+    /** Read the state of this hole written by serialize */
+    public void deserialize(DataInput input) throws IOException {
+        xTile = input.readUnsignedByte();
+        yTile = input.readUnsignedByte();
+        delayBusy = input.readUnsignedByte();
+        if (xTile >= LodeRunnerStage.STAGE_WIDTH || yTile >= LodeRunnerStage.STAGE_HEIGHT || delayBusy > DELAY_REFILL) {
+            throw new IOException("Corrupted stage state: bad hole");
+        }
+    }
+
     /** Fill this hole */
     protected void fill() {
         stage.setTile(xTile, yTile, LodeRunnerStage.TILE_BRICK);
-        stage.holes.removeElement(this);
+        stage.releaseHole(this);
     }
 
     /** Heartbeat for this character */
@@ -44,8 +78,8 @@ class LodeRunnerHole {
         }
     }
 
-    /** Render this hole */
-    protected boolean paint(Graphics g) {
+    /** Add this hole's sprite (if visible) to a render snapshot */
+    protected void publish(LodeRunnerSnapshot snapshot) {
         int frameHole = 0;
         if (delayBusy < DELAY_VISIBLE_REFILL) {
             frameHole = 75;
@@ -53,9 +87,8 @@ class LodeRunnerHole {
         if (delayBusy < 2 * DELAY_VISIBLE_REFILL) {
             frameHole = 74;
         }
-        if (frameHole == 0) {
-            return false;
+        if (frameHole != 0) {
+            snapshot.addTileSprite(frameHole, xTile, yTile);
         }
-        return stage.sprites[stage.spriteSize].paint(g, frameHole, xTile * LodeRunnerStage.SPRITE_WIDTH[stage.spriteSize], yTile * LodeRunnerStage.SPRITE_HEIGHT[stage.spriteSize]);
     }
 }
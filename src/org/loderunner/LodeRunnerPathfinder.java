@@ -0,0 +1,289 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.io.*;
+
+/**
+ * Shortest path guidance for the vilains, used by the harder AI difficulties.
+ * A distance field towards the hero's tile is computed by a breadth first search
+ * on the stage tiles, time-sliced at each heartBeat under a node expansion budget:
+ * an unfinished search is carried over to the next heartBeat, and the last completed
+ * field keeps guiding the vilains meanwhile. A new search starts once the previous one
+ * has completed, if the hero has changed tile or the stage tiles have changed.
+ * - DIFFICULTY_EASY: no guidance, vilains use their greedy AI only
+ * - DIFFICULTY_NORMAL: the search is limited to LOOKAHEAD_DEPTH moves around the hero
+ * - DIFFICULTY_HARD: the search covers the whole stage
+ * Vilains out of the field, or with no better move, fall back to their greedy AI.
+ */
+class LodeRunnerPathfinder {
+
+    /** AI difficulty constant for the greedy AI only */
+    public static final int DIFFICULTY_EASY = 0;
+    /** AI difficulty constant for the greedy AI with a limited lookahead search */
+    public static final int DIFFICULTY_NORMAL = 1;
+    /** AI difficulty constant for the full shortest path chase */
+    public static final int DIFFICULTY_HARD = 2;
+    /** Number of AI difficulties */
+    public static final int DIFFICULTIES = 3;
+    /** Maximum distance to the hero explored at DIFFICULTY_NORMAL, in moves */
+    public static final int LOOKAHEAD_DEPTH = 10;
+    /** Maximum number of tiles expanded per heartBeat */
+    public static final int EXPANSIONS_PER_HEARTBEAT = 96;
+    /** Distance of tiles not reached by the search */
+    private static final int UNREACHED = Integer.MAX_VALUE;
+    private static final int TILES = LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT;
+    /** Lode Runner stage where the vilains evolve */
+    private LodeRunnerStage stage;
+    /** Current AI difficulty */
+    private int difficulty = DIFFICULTY_EASY;
+    /** Distance field of the search in progress, in moves to the target tile */
+    private int[] distance = new int[TILES];
+    /** Last completed distance field */
+    private int[] field = new int[TILES];
+    /** Set if field holds a completed search */
+    private boolean isFieldReady = false;
+    /** Breadth first search queue of tile indexes */
+    private int[] queue = new int[TILES];
+    private int queueHead = 0, queueTail = 0;
+    /** Target tile index and stage tiles version of the search in progress (-1 if none) */
+    private int searchTarget = -1, searchVersion = -1;
+    /** Number of heartBeats where the expansion budget was exhausted before the search ended (statistics) */
+    public int budgetExhausted = 0;
+    /** Number of completed searches (statistics) */
+    public int searchesCompleted = 0;
+
+    LodeRunnerPathfinder(LodeRunnerStage stage) {
+        this.stage = stage;
+    }
+
+    /** Get the current AI difficulty */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /** Set the AI difficulty (one of the DIFFICULTY_* constants) */
+    public void setDifficulty(int difficulty) {
+        this.difficulty = difficulty;
+        reset();
+    }
+
+    /** Forget any search, e.g. for a newly loaded stage */
+    public void reset() {
+        isFieldReady = false;
+        searchTarget = searchVersion = -1;
+        queueHead = queueTail = 0;
+        budgetExhausted = 0;
+        searchesCompleted = 0;
+    }
+
+    /** Write a distance field, unreached tiles as -1 */
+    private static void writeField(DataOutput output, int[] field) throws IOException {
+        for (int t = 0; t < TILES; t++) {
+            output.writeShort(field[t] == UNREACHED ? -1 : field[t]);
+        }
+    }
+
+    /** Read a distance field written by writeField */
+    private static void readField(DataInput input, int[] field) throws IOException {
+        for (int t = 0; t < TILES; t++) {
+            int d = input.readShort();
+            field[t] = d < 0 ? UNREACHED : d;
+        }
+    }
+
+    /**
+     * Write the AI difficulty, the last completed field and the search in progress (see LodeRunnerStage.serialize).
+     * Nothing more is written at DIFFICULTY_EASY.
+     */
+    public void serialize(DataOutput output) throws IOException {
+        output.writeByte(difficulty);
+        if (difficulty == DIFFICULTY_EASY) {
+            return;
+        }
+        output.writeBoolean(isFieldReady);
+        if (isFieldReady) {
+            writeField(output, field);
+        }
+        output.writeShort(searchTarget);
+        output.writeBoolean(searchVersion == stage.tilesVersion);
+        output.writeShort(queueTail - queueHead);
+        for (int i = queueHead; i < queueTail; i++) {
+            output.writeShort(queue[i]);
+        }
+        if (queueHead < queueTail) {
+            writeField(output, distance);
+        }
+    }
+
+    /** Read the state written by serialize, once the stage tiles are restored */
+    public void deserialize(DataInput input) throws IOException {
+        int newDifficulty = input.readUnsignedByte();
+        if (newDifficulty >= DIFFICULTIES) {
+            throw new IOException("Corrupted stage state: bad difficulty " + newDifficulty);
+        }
+        setDifficulty(newDifficulty);
+        if (difficulty == DIFFICULTY_EASY) {
+            return;
+        }
+        isFieldReady = input.readBoolean();
+        if (isFieldReady) {
+            readField(input, field);
+        }
+        searchTarget = input.readShort();
+        // Tiles versions are not persistent: only whether the search was up to date is
+        searchVersion = input.readBoolean() ? stage.tilesVersion : -1;
+        queueTail = input.readUnsignedShort();
+        if (searchTarget >= TILES || queueTail > TILES) {
+            throw new IOException("Corrupted stage state: bad search");
+        }
+        for (int i = 0; i < queueTail; i++) {
+            queue[i] = input.readUnsignedShort();
+            if (queue[i] >= TILES) {
+                throw new IOException("Corrupted stage state: bad search");
+            }
+        }
+        if (queueTail > 0) {
+            readField(input, distance);
+        }
+    }
+
+    /** Check if a tile behavior lets a character run or climb into it */
+    private static boolean isPassable(int type) {
+        return type != LodeRunnerStage.TILE_BRICK && type != LodeRunnerStage.TILE_TRAP && type != LodeRunnerStage.TILE_CONCRETE;
+    }
+
+    /** Check if a character standing at the given tile would fall (see LodeRunnerCharacter.shouldFall) */
+    private boolean shouldFall(int x, int y) {
+        int currentType = stage.getTileBehavior(x, y);
+        if (currentType == LodeRunnerStage.TILE_BRICK || currentType == LodeRunnerStage.TILE_LADDER || currentType == LodeRunnerStage.TILE_ROPE) {
+            return false;
+        }
+        int bottomType = stage.getTileBehavior(x, y + 1);
+        return bottomType != LodeRunnerStage.TILE_BRICK && bottomType != LodeRunnerStage.TILE_CONCRETE && bottomType != LodeRunnerStage.TILE_LADDER;
+    }
+
+    /** Check if a vilain standing at (x, y) can move to the neighboring tile (x + dx, y + dy), ignoring other vilains */
+    private boolean canStep(int x, int y, int dx, int dy) {
+        int xNext = x + dx, yNext = y + dy;
+        if (x < 0 || x >= LodeRunnerStage.STAGE_WIDTH || y < 0 || y >= LodeRunnerStage.STAGE_HEIGHT
+                || xNext < 0 || xNext >= LodeRunnerStage.STAGE_WIDTH || yNext < 0 || yNext >= LodeRunnerStage.STAGE_HEIGHT) {
+            return false;
+        }
+        int nextType = stage.getTileBehavior(xNext, yNext);
+        if (dy > 0) {
+            // Climb down or fall, but never into a digged hole
+            return nextType != LodeRunnerStage.TILE_BRICK && nextType != LodeRunnerStage.TILE_CONCRETE
+                    && stage.getTile(xNext, yNext) != LodeRunnerStage.TILE_HOLE_EMPTY;
+        }
+        if (shouldFall(x, y)) {
+            return false;
+        }
+        if (dy < 0) {
+            return stage.getTileBehavior(x, y) == LodeRunnerStage.TILE_LADDER && isPassable(nextType);
+        }
+        return isPassable(nextType);
+    }
+
+    /** Expand a tile of the search: every neighbor that can step into it gets one more move of distance */
+    private void expand(int tile) {
+        int x = tile % LodeRunnerStage.STAGE_WIDTH, y = tile / LodeRunnerStage.STAGE_WIDTH;
+        int d = distance[tile] + 1;
+        if (difficulty == DIFFICULTY_NORMAL && d > LOOKAHEAD_DEPTH) {
+            return;
+        }
+        if (canStep(x - 1, y, 1, 0)) {
+            reach(tile - 1, d);
+        }
+        if (canStep(x + 1, y, -1, 0)) {
+            reach(tile + 1, d);
+        }
+        if (canStep(x, y - 1, 0, 1)) {
+            reach(tile - LodeRunnerStage.STAGE_WIDTH, d);
+        }
+        if (canStep(x, y + 1, 0, -1)) {
+            reach(tile + LodeRunnerStage.STAGE_WIDTH, d);
+        }
+    }
+
+    /** Record a tile as reached by the search at a given distance */
+    private void reach(int tile, int d) {
+        if (distance[tile] == UNREACHED) {
+            distance[tile] = d;
+            queue[queueTail++] = tile;
+        }
+    }
+
+    /** Heartbeat: carry on the search in progress, or start a new one if the field is out of date */
+    public void heartBeat() {
+        if (difficulty == DIFFICULTY_EASY || stage.hero == null) {
+            return;
+        }
+        int target = LodeRunnerStage.getTileIndex(stage.hero.xTile, stage.hero.yTile);
+        if (queueHead == queueTail) {
+            // Search completed: nothing to do if still up to date
+            if (target == searchTarget && stage.tilesVersion == searchVersion) {
+                return;
+            }
+            // Otherwise start a new search (a search in progress is always completed first)
+            searchTarget = target;
+            searchVersion = stage.tilesVersion;
+            for (int t = 0; t < TILES; t++) {
+                distance[t] = UNREACHED;
+            }
+            queueHead = queueTail = 0;
+            distance[target] = 0;
+            queue[queueTail++] = target;
+        }
+        int expansions = 0;
+        while (queueHead < queueTail) {
+            if (expansions == EXPANSIONS_PER_HEARTBEAT) {
+                budgetExhausted++;
+                return;
+            }
+            expand(queue[queueHead++]);
+            expansions++;
+        }
+        // Search completed, publish its field
+        int[] completed = distance;
+        distance = field;
+        field = completed;
+        isFieldReady = true;
+        searchesCompleted++;
+    }
+
+    /**
+     * Get the move bringing a vilain standing at a given tile closer to the hero,
+     * or MOVE_NONE if there is no guidance (then the greedy AI should be used).
+     * Other vilains are ignored: the returned move should still be tried.
+     */
+    public int getMoveTowardsHero(int xTile, int yTile) {
+        if (difficulty == DIFFICULTY_EASY || !isFieldReady) {
+            return LodeRunnerCharacter.MOVE_NONE;
+        }
+        int best = field[LodeRunnerStage.getTileIndex(xTile, yTile)];
+        int move = LodeRunnerCharacter.MOVE_NONE;
+        if (canStep(xTile, yTile, 0, -1) && field[LodeRunnerStage.getTileIndex(xTile, yTile - 1)] < best) {
+            best = field[LodeRunnerStage.getTileIndex(xTile, yTile - 1)];
+            move = LodeRunnerCharacter.MOVE_CLIMB_UP;
+        }
+        if (canStep(xTile, yTile, 0, 1) && field[LodeRunnerStage.getTileIndex(xTile, yTile + 1)] < best) {
+            best = field[LodeRunnerStage.getTileIndex(xTile, yTile + 1)];
+            move = LodeRunnerCharacter.MOVE_CLIMB_DOWN;
+        }
+        if (canStep(xTile, yTile, -1, 0) && field[LodeRunnerStage.getTileIndex(xTile - 1, yTile)] < best) {
+            best = field[LodeRunnerStage.getTileIndex(xTile - 1, yTile)];
+            move = LodeRunnerCharacter.MOVE_RUN_LEFT;
+        }
+        if (canStep(xTile, yTile, 1, 0) && field[LodeRunnerStage.getTileIndex(xTile + 1, yTile)] < best) {
+            move = LodeRunnerCharacter.MOVE_RUN_RIGHT;
+        }
+        return move;
+    }
+
+    /** Describe the searches since the stage was loaded */
+    public String getStatistics() {
+        return "difficulty " + difficulty + ", " + searchesCompleted + " searches completed, budget exhausted at "
+                + budgetExhausted + " heartBeats (" + EXPANSIONS_PER_HEARTBEAT + " expansions each)";
+    }
+}
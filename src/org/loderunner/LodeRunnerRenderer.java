@@ -0,0 +1,1138 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import javax.microedition.lcdui.*;
+
+/**
+ * Renderer of a Lode Runner stage, using lcdui.
+ * The stage is never read directly: every frame is rendered from a copy of the last
+ * render snapshot published by the stage (see LodeRunnerStage.publishSnapshot).
+ * In normal size, a frame only repaints the areas changed since the previous frame (see prepareFrame):
+ * the previous and new areas of the sprites, direction diamonds and hero message that changed, and the
+ * changed tiles. Each of these dirty rectangles is restored from the background image, then the sprites
+ * over it are painted again. A new stage or a scrolled screen is painted entirely.
+ * In normal size, frames are either drawn with lcdui, or composed into a software framebuffer and pushed
+ * with a single drawRGB (see GameFramebuffer). The faster mode on the device can be chosen by a benchmark.
+ * Frames can be rendered more often than the simulation ticks: the characters are then drawn between their
+ * positions in the previous and last snapshots, by the time elapsed since the last one (see computePositions).
+ */
+class LodeRunnerRenderer {
+
+    /** Tile/sprite width in pixels, at scale 1 */
+    public static final int[] SPRITE_WIDTH = {12, 4};
+    /** Tile/sprite height in pixels, at scale 1 */
+    public static final int[] SPRITE_HEIGHT = {11, 4};
+    /** Screen size showing the stage as intended at scale 1: larger screens get the largest integer scale still showing as much */
+    public static final int REFERENCE_WIDTH = 176, REFERENCE_HEIGHT = 208;
+    /** Maximum scale */
+    public static final int MAX_SCALE = 4;
+    /** Sprite size constant for normal stage rendering */
+    public static final int SPRITE_NORMAL = 0;
+    /** Sprite size constant for small stage overview rendering */
+    public static final int SPRITE_SMALL = 1;
+    /** Mapping table from tile type to sprite index (see LodeRunnerStage.TILE_FRAMES) */
+    public static final int[] spriteMap = LodeRunnerStage.TILE_FRAMES;
+    /** Integer scale of the sprites, font and backgrounds, chosen once (see getScale) */
+    public final int scale;
+    /** Scaled tile/sprite width and height in pixels */
+    public final int[] spriteWidth = new int[2], spriteHeight = new int[2];
+    /** Lode Runner sprites (for both tiles & characters), scaled */
+    public GameSprite[] sprites = new GameSprite[2];
+    /** Lode Runner small sprite font */
+    public GameFont font = null;
+    /** Current sprite size */
+    public int spriteSize = SPRITE_NORMAL;
+    /** Rendered stage */
+    private LodeRunnerStage stage;
+    /** Copy of the last published render snapshot of the stage */
+    public LodeRunnerSnapshot view = new LodeRunnerSnapshot();
+    /** Copy of the snapshot of the previous tick, and buffer of the next copy (see acquireView) */
+    private LodeRunnerSnapshot previousView = new LodeRunnerSnapshot(), nextView = new LodeRunnerSnapshot();
+    /** Time at which the snapshot of the last tick was acquired */
+    private long viewTime = 0;
+    /**
+     * Vilains' positions before their last heartBeat (vilainsCount is -1 if unknown), and the time at which
+     * the snapshot of that heartBeat was acquired: the vilains move every LodeRunnerStage.VILAINS_TICKS ticks
+     */
+    private int[] vilainXs = new int[0], vilainYs = new int[0];
+    private int vilainsCount = -1;
+    private long vilainsTime = 0;
+    /**
+     * Duration of a simulation tick in milliseconds, over which the hero moves from its previous to its
+     * last position, the vilains over their heartBeat (0 to render the last positions only, see computePositions)
+     */
+    public int interpolationMillis = 0;
+    /** Rendered positions are in 1/SUBSTEPS of the snapshot positions */
+    private static final int SUBSTEPS = 16;
+    /** Rendered positions of the sprites, and of the hero's center and top (see computePositions) */
+    private int[] subXs = new int[0], subYs = new int[0];
+    private int subHeroCenterX = 0, subHeroCenterY = 0, subHeroY = 0;
+    /** Set while some character is rendered between two positions: the next frames differ without a new tick */
+    private boolean isAnimating = false;
+    /** Frames prepared between two positions (statistics) */
+    public int interpolatedFrames = 0;
+    /**
+     * Stage background pixel images, for each sprite size: the tiles in normal size, and the tiles over
+     * a black background for the small stage overview. They are drawn once per stage, then patched.
+     * The normal size image is only allocated for screens as large as the stage (see ensureBackground).
+     */
+    private Image[] backgroundImages = new Image[2];
+    /**
+     * Wrap-around background buffer in normal size, for screens smaller than the stage: the visible tiles,
+     * one tile larger than the screen each way. Stage tile (x, y) is held by slot (x % wrapColumns, y % wrapRows),
+     * so that scrolling only draws the newly exposed rows and columns.
+     */
+    private Image wrapImage = null;
+    /** Size of the wrap-around buffer, in tiles */
+    private int wrapColumns = 0, wrapRows = 0;
+    /** Stage tile held by each slot of the wrap-around buffer (-1 if none), and its appearance */
+    private int[] wrapSlotTiles = null;
+    private byte[] wrapSlotAppearances = null;
+    /** First visible column and row, and tiles version, of the last update of the wrap-around buffer */
+    private int wrapColumn = -1, wrapRow = -1, wrapVersion = -1;
+    /** Tiles drawn into the wrap-around buffer (statistics) */
+    public int wrapTilesPainted = 0;
+    /** Tiles appearance drawn in each background image (-1 if not drawn yet), and their stage serial and tiles version */
+    private byte[][] backgroundTiles = new byte[2][LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+    private int[] backgroundSerials = {-1, -1}, backgroundVersions = {-1, -1};
+    /** Small stage overview background tiles drawn (statistics) */
+    public int overviewTilesPainted = 0;
+    /** Maximum number of dirty rectangles in a frame: more are merged into their bounding box */
+    private static final int MAX_DIRTY_RECTS = 16;
+    /** Screen size in pixels, 0 until the first prepared frame (the clip of a partial repaint is smaller) */
+    private int screenWidth = 0, screenHeight = 0;
+    /** Translation of the stage on screen in normal size, in the last prepared or painted frame */
+    private int translateX = 0, translateY = 0;
+    /** Set when the next frame must be painted entirely, and when the screen was overdrawn since the previous frame */
+    private boolean isFullFrame = true, isInvalid = true;
+    /** Dirty rectangles of the next frame, in stage pixels */
+    private int[] dirtyX = new int[MAX_DIRTY_RECTS], dirtyY = new int[MAX_DIRTY_RECTS];
+    private int[] dirtyWidth = new int[MAX_DIRTY_RECTS], dirtyHeight = new int[MAX_DIRTY_RECTS];
+    private int dirtyCount = 0;
+    /**
+     * Areas painted in the next and previous frames, 5 ints each: appearance (sprite frame, diamond size
+     * or message) and rectangle in stage pixels. One area per sprite, then one for the hero message.
+     */
+    private int[] areas = new int[0], lastAreas = new int[0];
+    private int lastAreasCount = 0, lastSerial = -1;
+    /** Appearance of an area whose vilain is signaled by a diamond of size 0 to 2 (-1 to -3), or with nothing painted */
+    private static final int AREA_DIAMOND = -1, AREA_NONE = -4;
+    /** Position and size of the last computed direction diamond (see computeDirection) */
+    private int[] direction = new int[3];
+    /** Characters of the hero's floating message (see formatMessage) */
+    private char[] messageChars = new char[2 * GameHud.MAX_DIGITS + 1];
+    /** Indexes of the sprites under the clip, in painting order (see paintSprites) */
+    private int[] visibleSprites = new int[0];
+    /** Bounding box of the dirty rectangles, compared to the clip (see paint) */
+    private int[] clipArea = new int[4];
+    /** Rendering modes in normal size: lcdui drawing, software framebuffer, or the faster of both (see getPaintMode) */
+    public static final int MODE_LCDUI = 0, MODE_FRAMEBUFFER = 1, MODE_AUTO = 2;
+    /** Names of the rendering modes */
+    public static final String[] MODE_NAMES = {"lcdui", "RGB", "Auto"};
+    /** Number of frames painted in each mode, before choosing the faster one in MODE_AUTO */
+    private static final int BENCHMARK_FRAMES = 64;
+    /** Rendering mode in normal size */
+    private int mode = MODE_LCDUI;
+    /** Frames of the stage painted in each mode while benchmarking, and their time in milliseconds */
+    private int[] benchmarkFrames = new int[2];
+    private long[] benchmarkTimes = new long[2];
+    /** Software framebuffer of the screen, allocated in MODE_FRAMEBUFFER, and set when it holds the last painted frame */
+    private GameFramebuffer framebuffer = null;
+    private boolean isFramebufferValid = false;
+    /** Set when the normal size background holds the tiles tracked in backgroundTiles (not kept up to date in framebuffer mode) */
+    private boolean isBackgroundDrawn = false;
+    /** Visible area of the sprites in the last call to findVisibleSprites */
+    private int visibleX, visibleY, visibleWidth, visibleHeight;
+    /** Frames painted in normal size, painted entirely, and their pixels (statistics) */
+    public int framesPainted = 0, fullFramesPainted = 0;
+    public long pixelsPainted = 0;
+
+    /** Initialize a renderer for a given stage. Load the sprites resources. */
+    LodeRunnerRenderer(LodeRunnerStage stage) {
+        this(stage, 1);
+    }
+
+    /** Initialize a renderer for a given stage, at a given scale. Load and scale the sprites resources. */
+    LodeRunnerRenderer(LodeRunnerStage stage, int scale) {
+        this.stage = stage;
+        this.scale = scale;
+        for (int i = 0; i < 2; i++) {
+            spriteWidth[i] = SPRITE_WIDTH[i] * scale;
+            spriteHeight[i] = SPRITE_HEIGHT[i] * scale;
+        }
+        try {
+            // Load game resource images (font and sprites), scaled once
+            font = new GameFont(GameSprite.scaleImage(Image.createImage("/res/Font.png"), scale), 3 * scale, 5 * scale, "0123456789/");
+            font.spacing = scale;
+            for (int i = 0; i < 2; i++) {
+                Image image = Image.createImage("/res/Tiles " + SPRITE_WIDTH[i] + "x" + SPRITE_HEIGHT[i] + ".png");
+                sprites[i] = new GameSprite(GameSprite.scaleImage(image, scale), spriteWidth[i], spriteHeight[i], 0, 0);
+            }
+            // If enough memory, use a background image to speed up the small stage overview (see ensureBackground)
+            backgroundImages[SPRITE_SMALL] = Image.createImage(LodeRunnerStage.STAGE_WIDTH * spriteWidth[SPRITE_SMALL], LodeRunnerStage.STAGE_HEIGHT * spriteHeight[SPRITE_SMALL]);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Largest integer scale showing at least as much of the stage as the reference screen, on a screen of a given size */
+    public static int getScale(int width, int height) {
+        return Math.max(1, Math.min(MAX_SCALE, Math.min(width / REFERENCE_WIDTH, height / REFERENCE_HEIGHT)));
+    }
+
+    /** Number of bytes of the scaled images (as 32 bits pixels): sprites, font and backgrounds */
+    public int getMemorySize() {
+        int size = sprites[SPRITE_NORMAL].getMemorySize() + sprites[SPRITE_SMALL].getMemorySize() + font.getMemorySize();
+        for (int i = 0; i < 2; i++) {
+            if (backgroundImages[i] != null) {
+                size += 4 * backgroundImages[i].getWidth() * backgroundImages[i].getHeight();
+            }
+        }
+        if (wrapImage != null) {
+            size += 4 * wrapImage.getWidth() * wrapImage.getHeight();
+        }
+        if (framebuffer != null) {
+            size += 4 * framebuffer.pixels.length;
+        }
+        return size;
+    }
+
+    /** Copy the last published render snapshot of the stage into view, before rendering */
+    public void acquireSnapshot() {
+        acquireView(System.currentTimeMillis());
+    }
+
+    /**
+     * Copy the last published render snapshot into view at a given time. When it is the snapshot of
+     * a new tick, the former view becomes the previous one. Then compute the rendered positions.
+     */
+    private void acquireView(long time) {
+        stage.acquireSnapshot(nextView);
+        LodeRunnerSnapshot swap = view;
+        view = nextView;
+        if (view.tick != swap.tick || view.stageSerial != swap.stageSerial) {
+            if (getVilainsHeartBeats(view.tick) != getVilainsHeartBeats(swap.tick) || view.stageSerial != swap.stageSerial) {
+                keepVilains(swap);
+                vilainsTime = time;
+            }
+            nextView = previousView;
+            previousView = swap;
+            viewTime = time;
+        } else {
+            nextView = swap;
+        }
+        computePositions(time);
+    }
+
+    /** Number of vilains' heartBeats run by a stage at a given tick */
+    private static int getVilainsHeartBeats(int tick) {
+        return (tick + LodeRunnerStage.VILAINS_TICKS - 1) / LodeRunnerStage.VILAINS_TICKS;
+    }
+
+    /** Keep the vilains' positions of the snapshot before their heartBeat, unless it is another stage's */
+    private void keepVilains(LodeRunnerSnapshot before) {
+        vilainsCount = -1;
+        if (before.stageSerial != view.stageSerial) {
+            return;
+        }
+        int count = before.vilainsEnd - before.vilainsStart;
+        if (vilainXs.length < count) {
+            vilainXs = new int[count + 8];
+            vilainYs = new int[count + 8];
+        }
+        System.arraycopy(before.xs, before.vilainsStart, vilainXs, 0, count);
+        System.arraycopy(before.ys, before.vilainsStart, vilainYs, 0, count);
+        vilainsCount = count;
+    }
+
+    /**
+     * Compute the rendered positions of the sprites. Without interpolation, they are the last snapshot's.
+     * Otherwise, the hero is moved from its position in the previous snapshot by the part of a tick elapsed
+     * since the last one, and the vilains (when their number has not changed) from their position before their
+     * last heartBeat by the part of their heartBeat elapsed since it, unless they moved more than a tile
+     * (a vilain reborn, a rewind).
+     */
+    private void computePositions(long time) {
+        int count = view.spritesCount;
+        if (subXs.length < count) {
+            subXs = new int[view.frames.length];
+            subYs = new int[view.frames.length];
+        }
+        for (int i = 0; i < count; i++) {
+            subXs[i] = view.xs[i] * SUBSTEPS;
+            subYs[i] = view.ys[i] * SUBSTEPS;
+        }
+        subHeroCenterX = view.heroCenterX * SUBSTEPS;
+        subHeroCenterY = view.heroCenterY * SUBSTEPS;
+        subHeroY = view.heroY * SUBSTEPS;
+        isAnimating = false;
+        if (interpolationMillis <= 0) {
+            return;
+        }
+        long elapsed = time - vilainsTime;
+        int duration = interpolationMillis * LodeRunnerStage.VILAINS_TICKS;
+        int vilains = view.vilainsEnd - view.vilainsStart;
+        if (vilains == vilainsCount && elapsed >= 0 && elapsed < duration) {
+            int fraction = (int) elapsed * SUBSTEPS / duration;
+            for (int n = 0; n < vilains; n++) {
+                interpolate(view.vilainsStart + n, vilainXs[n], vilainYs[n], fraction);
+            }
+        }
+        elapsed = time - viewTime;
+        if (elapsed >= 0 && elapsed < interpolationMillis && previousView.stageSerial == view.stageSerial && view.hasHero && previousView.hasHero) {
+            int fraction = (int) elapsed * SUBSTEPS / interpolationMillis;
+            int previous = previousView.spritesCount - 1;
+            if (interpolate(count - 1, previousView.xs[previous], previousView.ys[previous], fraction)) {
+                subHeroCenterX = previousView.heroCenterX * SUBSTEPS + (view.heroCenterX - previousView.heroCenterX) * fraction;
+                subHeroCenterY = previousView.heroCenterY * SUBSTEPS + (view.heroCenterY - previousView.heroCenterY) * fraction;
+                subHeroY = previousView.heroY * SUBSTEPS + (view.heroY - previousView.heroY) * fraction;
+            }
+        }
+        if (isAnimating) {
+            interpolatedFrames++;
+        }
+    }
+
+    /** Move a sprite from a former position by a fraction of its move. Returns false if it moved more than a tile. */
+    private boolean interpolate(int i, int x, int y, int fraction) {
+        int dx = view.xs[i] - x, dy = view.ys[i] - y;
+        if (dx < -6 || dx > 6 || dy < -5 || dy > 5) {
+            return false;
+        }
+        if (dx != 0 || dy != 0) {
+            subXs[i] = x * SUBSTEPS + dx * fraction;
+            subYs[i] = y * SUBSTEPS + dy * fraction;
+            isAnimating = true;
+        }
+        return true;
+    }
+
+    /** Check if the last prepared frame has characters between two positions: the next frames will differ without a new tick */
+    public boolean isAnimating() {
+        return isAnimating;
+    }
+
+    /** Rendered left of a sprite in pixels, for a sprite width */
+    private int getSpriteX(int i, int width) {
+        return subXs[i] * width / (6 * SUBSTEPS);
+    }
+
+    /** Rendered top of a sprite in pixels, for a sprite height */
+    private int getSpriteY(int i, int height) {
+        return subYs[i] * height / (5 * SUBSTEPS);
+    }
+
+    /** First tile (or sprite column) at least partly within a clip range, clamped to the stage */
+    private static int getFirstTile(int clipStart, int tileSize, int tilesCount) {
+        return Math.max(0, Math.min(clipStart / tileSize, tilesCount));
+    }
+
+    /** Last tile (or sprite column) at least partly within a clip range, clamped to the stage */
+    private static int getLastTile(int clipEnd, int tileSize, int tilesCount) {
+        return Math.max(-1, Math.min(clipEnd / tileSize, tilesCount - 1));
+    }
+
+    /** Renders the stage's tiles within the clip (translated to the stage) */
+    public void paintTiles(Graphics g) {
+        boolean screenCleared = (spriteSize == SPRITE_SMALL || backgroundImages[spriteSize] == null);
+        int width = spriteWidth[spriteSize], height = spriteHeight[spriteSize];
+        int x0 = getFirstTile(Math.max(0, g.getClipX()), width, LodeRunnerStage.STAGE_WIDTH);
+        int x1 = getLastTile(g.getClipX() + g.getClipWidth() - 1, width, LodeRunnerStage.STAGE_WIDTH);
+        int y0 = getFirstTile(Math.max(0, g.getClipY()), height, LodeRunnerStage.STAGE_HEIGHT);
+        int y1 = getLastTile(g.getClipY() + g.getClipHeight() - 1, height, LodeRunnerStage.STAGE_HEIGHT);
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                // Tiles are drawn according to their appearance
+                int tile = view.tiles[LodeRunnerStage.getTileIndex(x, y)];
+                // If screen has been cleared, empty tiles can be skipped
+                if (screenCleared && tile != LodeRunnerStage.TILE_VOID) {
+                    sprites[spriteSize].paint(g, spriteMap[tile], x * spriteWidth[spriteSize], y * spriteHeight[spriteSize]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Allocate the normal size background for a screen of a given size: a wrap-around buffer if the screen
+     * is smaller than the stage, the whole stage background image otherwise
+     */
+    private void ensureBackground(int width, int height) {
+        int tileWidth = spriteWidth[SPRITE_NORMAL], tileHeight = spriteHeight[SPRITE_NORMAL];
+        if (width >= LodeRunnerStage.STAGE_WIDTH * tileWidth && height >= LodeRunnerStage.STAGE_HEIGHT * tileHeight) {
+            if (backgroundImages[SPRITE_NORMAL] == null) {
+                wrapImage = null;
+                backgroundSerials[SPRITE_NORMAL] = -1;
+                backgroundImages[SPRITE_NORMAL] = Image.createImage(LodeRunnerStage.STAGE_WIDTH * tileWidth, LodeRunnerStage.STAGE_HEIGHT * tileHeight);
+            }
+            return;
+        }
+        int columns = Math.min(LodeRunnerStage.STAGE_WIDTH, (width + tileWidth - 1) / tileWidth + 1);
+        int rows = Math.min(LodeRunnerStage.STAGE_HEIGHT, (height + tileHeight - 1) / tileHeight + 1);
+        if (wrapImage == null || columns != wrapColumns || rows != wrapRows) {
+            backgroundImages[SPRITE_NORMAL] = null;
+            wrapImage = null;
+            wrapImage = Image.createImage(columns * tileWidth, rows * tileHeight);
+            wrapColumns = columns;
+            wrapRows = rows;
+            wrapSlotTiles = new int[columns * rows];
+            wrapSlotAppearances = new byte[columns * rows];
+            resetWrapSlots();
+        }
+    }
+
+    /** Forget the tiles held by the wrap-around buffer */
+    private void resetWrapSlots() {
+        for (int slot = 0; slot < wrapColumns * wrapRows; slot++) {
+            wrapSlotTiles[slot] = -1;
+        }
+        wrapColumn = wrapRow = wrapVersion = -1;
+    }
+
+    /** Check if a normal size background is allocated */
+    private boolean hasBackground() {
+        return backgroundImages[SPRITE_NORMAL] != null || wrapImage != null;
+    }
+
+    /** Forget the previous frame: the next one is painted entirely (when the screen was overdrawn) */
+    public void invalidate() {
+        isInvalid = true;
+    }
+
+    /**
+     * Prepare the next frame in normal size, on a screen of a given size: acquire the last render snapshot,
+     * and find the areas changed since the previous frame (unless the frame must be painted entirely).
+     * Returns false if the screen is up to date.
+     */
+    public boolean prepareFrame(int width, int height, boolean isPartial) {
+        return prepareFrame(width, height, isPartial, System.currentTimeMillis());
+    }
+
+    /** Prepare the next frame in normal size at a given time (see prepareFrame and computePositions) */
+    public synchronized boolean prepareFrame(int width, int height, boolean isPartial, long time) {
+        acquireView(time);
+        screenWidth = width;
+        screenHeight = height;
+        ensureBackground(width, height);
+        int previousX = translateX, previousY = translateY;
+        computeTranslation(width, height);
+        boolean isLoaded = isViewLoaded() && hasBackground();
+        isFullFrame = !isPartial || isInvalid || !isLoaded || view.stageSerial != lastSerial
+                || translateX != previousX || translateY != previousY;
+        isInvalid = false;
+        dirtyCount = 0;
+        lastSerial = isLoaded ? view.stageSerial : -1;
+        if (!isLoaded) {
+            lastAreasCount = 0;
+            return true;
+        }
+        // Areas of this frame
+        int areasCount = view.spritesCount + 1;
+        if (areas.length < 5 * areasCount) {
+            areas = new int[5 * areasCount];
+        }
+        int width0 = spriteWidth[SPRITE_NORMAL], height0 = spriteHeight[SPRITE_NORMAL];
+        for (int i = 0; i < view.spritesCount; i++) {
+            int x = getSpriteX(i, width0), y = getSpriteY(i, height0);
+            if (isOnScreen(x, y, width0, height0, -translateX, -translateY, width, height)) {
+                setArea(i, view.frames[i], x, y, width0, height0);
+            } else if (i >= view.vilainsStart && i < view.vilainsEnd) {
+                computeDirection(view.xCenters[i] * width0 / 6, view.yCenters[i] * height0 / 5, -translateX, -translateY, width, height);
+                setArea(i, AREA_DIAMOND - direction[2], direction[0] - 2, direction[1] - 2, 5, 5);
+            } else {
+                setArea(i, AREA_NONE, 0, 0, 0, 0);
+            }
+        }
+        if (view.heroMessageChests >= 0) {
+            int textWidth = font.charsWidth(formatMessage());
+            setArea(view.spritesCount, view.heroMessageChests, getMessageX() - textWidth / 2,
+                    getMessageY() - font.frameHeight, textWidth, font.frameHeight);
+        } else {
+            setArea(view.spritesCount, AREA_NONE, 0, 0, 0, 0);
+        }
+        if (!isFullFrame) {
+            // Previous and new rectangles of every changed area
+            for (int i = 0; i < Math.max(areasCount, lastAreasCount); i++) {
+                int o = 5 * i;
+                if (i < areasCount && i < lastAreasCount && areas[o] == lastAreas[o] && areas[o + 1] == lastAreas[o + 1]
+                        && areas[o + 2] == lastAreas[o + 2] && areas[o + 3] == lastAreas[o + 3] && areas[o + 4] == lastAreas[o + 4]) {
+                    continue;
+                }
+                if (i < lastAreasCount) {
+                    addDirtyRect(lastAreas[o + 1], lastAreas[o + 2], lastAreas[o + 3], lastAreas[o + 4]);
+                }
+                if (i < areasCount) {
+                    addDirtyRect(areas[o + 1], areas[o + 2], areas[o + 3], areas[o + 4]);
+                }
+            }
+            // Tiles whose appearance differs from the background image
+            if (view.tilesVersion != backgroundVersions[SPRITE_NORMAL]) {
+                for (int tileIndex = 0; tileIndex < LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT; tileIndex++) {
+                    if (backgroundTiles[SPRITE_NORMAL][tileIndex] != view.tiles[tileIndex]) {
+                        addDirtyRect(tileIndex % LodeRunnerStage.STAGE_WIDTH * width0, tileIndex / LodeRunnerStage.STAGE_WIDTH * height0, width0, height0);
+                    }
+                }
+            }
+        }
+        int[] swap = lastAreas;
+        lastAreas = areas;
+        areas = swap;
+        lastAreasCount = areasCount;
+        return isFullFrame || dirtyCount > 0;
+    }
+
+    /** Set the appearance and rectangle of an area of the next frame */
+    private void setArea(int i, int appearance, int x, int y, int width, int height) {
+        int o = 5 * i;
+        areas[o] = appearance;
+        areas[o + 1] = x;
+        areas[o + 2] = y;
+        areas[o + 3] = width;
+        areas[o + 4] = height;
+    }
+
+    /** Add a rectangle in stage pixels to the dirty rectangles, clipped to the screen, merging the ones it touches */
+    private void addDirtyRect(int x, int y, int width, int height) {
+        int x1 = Math.min(x + width, screenWidth - translateX), y1 = Math.min(y + height, screenHeight - translateY);
+        x = Math.max(x, -translateX);
+        y = Math.max(y, -translateY);
+        if (x >= x1 || y >= y1) {
+            return;
+        }
+        for (int i = 0; i < dirtyCount; i++) {
+            if (x <= dirtyX[i] + dirtyWidth[i] && dirtyX[i] <= x1 && y <= dirtyY[i] + dirtyHeight[i] && dirtyY[i] <= y1) {
+                // Merge with this rectangle, and check again the others
+                x1 = Math.max(x1, dirtyX[i] + dirtyWidth[i]);
+                y1 = Math.max(y1, dirtyY[i] + dirtyHeight[i]);
+                x = Math.min(x, dirtyX[i]);
+                y = Math.min(y, dirtyY[i]);
+                removeDirtyRect(i);
+                i = -1;
+            }
+        }
+        if (dirtyCount == MAX_DIRTY_RECTS) {
+            // Too many rectangles: keep their bounding box
+            while (dirtyCount > 0) {
+                x1 = Math.max(x1, dirtyX[0] + dirtyWidth[0]);
+                y1 = Math.max(y1, dirtyY[0] + dirtyHeight[0]);
+                x = Math.min(x, dirtyX[0]);
+                y = Math.min(y, dirtyY[0]);
+                removeDirtyRect(0);
+            }
+        }
+        dirtyX[dirtyCount] = x;
+        dirtyY[dirtyCount] = y;
+        dirtyWidth[dirtyCount] = x1 - x;
+        dirtyHeight[dirtyCount] = y1 - y;
+        dirtyCount++;
+    }
+
+    /** Remove a dirty rectangle, replaced by the last one */
+    private void removeDirtyRect(int i) {
+        dirtyCount--;
+        dirtyX[i] = dirtyX[dirtyCount];
+        dirtyY[i] = dirtyY[dirtyCount];
+        dirtyWidth[i] = dirtyWidth[dirtyCount];
+        dirtyHeight[i] = dirtyHeight[dirtyCount];
+    }
+
+    /**
+     * Get the screen area to repaint for the prepared frame (x, y, width and height in screen pixels):
+     * the bounding box of the dirty rectangles, or the whole screen
+     */
+    public void getRepaintArea(int[] area) {
+        if (isFullFrame || dirtyCount == 0) {
+            area[0] = area[1] = 0;
+            area[2] = isFullFrame ? screenWidth : 0;
+            area[3] = isFullFrame ? screenHeight : 0;
+            return;
+        }
+        int x = Integer.MAX_VALUE, y = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for (int i = 0; i < dirtyCount; i++) {
+            x = Math.min(x, dirtyX[i]);
+            y = Math.min(y, dirtyY[i]);
+            x1 = Math.max(x1, dirtyX[i] + dirtyWidth[i]);
+            y1 = Math.max(y1, dirtyY[i] + dirtyHeight[i]);
+        }
+        area[0] = x + translateX;
+        area[1] = y + translateY;
+        area[2] = x1 - x;
+        area[3] = y1 - y;
+    }
+
+    /** Repaint the dirty rectangles of the prepared frame: restore the background, then paint the sprites over it */
+    private void paintDirtyRects(Graphics g) {
+        repaintBackgroundTiles();
+        int stageWidth = LodeRunnerStage.STAGE_WIDTH * spriteWidth[SPRITE_NORMAL];
+        int stageHeight = LodeRunnerStage.STAGE_HEIGHT * spriteHeight[SPRITE_NORMAL];
+        g.translate(translateX, translateY);
+        int cx = g.getClipX(), cy = g.getClipY(), cw = g.getClipWidth(), ch = g.getClipHeight();
+        for (int i = 0; i < dirtyCount; i++) {
+            int x = dirtyX[i], y = dirtyY[i], width = dirtyWidth[i], height = dirtyHeight[i];
+            g.setClip(x, y, width, height);
+            if (x < 0 || y < 0 || x + width > stageWidth || y + height > stageHeight) {
+                g.setColor(0);
+                g.fillRect(x, y, width, height);
+            }
+            int x0 = Math.max(x, 0), y0 = Math.max(y, 0);
+            int x1 = Math.min(x + width, stageWidth), y1 = Math.min(y + height, stageHeight);
+            if (x0 < x1 && y0 < y1) {
+                drawBackground(g, x0, y0, x1 - x0, y1 - y0);
+            }
+            paintSprites(g);
+            pixelsPainted += width * height;
+        }
+        g.setClip(cx, cy, cw, ch);
+        g.translate(-translateX, -translateY);
+    }
+
+    /**
+     * Draw a rectangle of the normal size background, in stage pixels within the stage.
+     * From the wrap-around buffer, the rectangle is drawn in up to four pieces, split where the buffer wraps.
+     */
+    private void drawBackground(Graphics g, int x, int y, int width, int height) {
+        if (wrapImage == null) {
+            g.drawRegion(backgroundImages[SPRITE_NORMAL], x, y, width, height, 0, x, y, Graphics.TOP | Graphics.LEFT);
+            return;
+        }
+        int wrapWidth = wrapColumns * spriteWidth[SPRITE_NORMAL], wrapHeight = wrapRows * spriteHeight[SPRITE_NORMAL];
+        for (int yPiece = y; yPiece < y + height;) {
+            int yWrap = yPiece % wrapHeight, heightPiece = Math.min(y + height - yPiece, wrapHeight - yWrap);
+            for (int xPiece = x; xPiece < x + width;) {
+                int xWrap = xPiece % wrapWidth, widthPiece = Math.min(x + width - xPiece, wrapWidth - xWrap);
+                g.drawRegion(wrapImage, xWrap, yWrap, widthPiece, heightPiece, 0, xPiece, yPiece, Graphics.TOP | Graphics.LEFT);
+                xPiece += widthPiece;
+            }
+            yPiece += heightPiece;
+        }
+    }
+
+    /**
+     * Draw the visible tiles that the wrap-around buffer does not hold yet: the rows and columns exposed by
+     * scrolling, and the tiles whose appearance has changed
+     */
+    private void repaintWrapTiles() {
+        int width = spriteWidth[SPRITE_NORMAL], height = spriteHeight[SPRITE_NORMAL];
+        int column0 = getFirstTile(Math.max(0, -translateX), width, LodeRunnerStage.STAGE_WIDTH);
+        int row0 = getFirstTile(Math.max(0, -translateY), height, LodeRunnerStage.STAGE_HEIGHT);
+        if (column0 == wrapColumn && row0 == wrapRow && view.tilesVersion == wrapVersion) {
+            return;
+        }
+        wrapColumn = column0;
+        wrapRow = row0;
+        wrapVersion = view.tilesVersion;
+        // The whole buffer is kept up to date, so that it only depends on the first visible column and row
+        int column1 = Math.min(column0 + wrapColumns, LodeRunnerStage.STAGE_WIDTH) - 1;
+        int row1 = Math.min(row0 + wrapRows, LodeRunnerStage.STAGE_HEIGHT) - 1;
+        Graphics g = null;
+        for (int y = row0; y <= row1; y++) {
+            for (int x = column0; x <= column1; x++) {
+                int tileIndex = LodeRunnerStage.getTileIndex(x, y), tileAppearance = view.tiles[tileIndex];
+                int slot = x % wrapColumns + y % wrapRows * wrapColumns;
+                if (wrapSlotTiles[slot] != tileIndex || wrapSlotAppearances[slot] != tileAppearance) {
+                    wrapSlotTiles[slot] = tileIndex;
+                    wrapSlotAppearances[slot] = (byte) tileAppearance;
+                    if (g == null) {
+                        g = wrapImage.getGraphics();
+                    }
+                    sprites[SPRITE_NORMAL].paint(g, spriteMap[tileAppearance], x % wrapColumns * width, y % wrapRows * height);
+                    wrapTilesPainted++;
+                }
+            }
+        }
+    }
+
+    /** Describe the painted frames, their average number of pixels and the background tiles drawn */
+    public String getStatistics() {
+        return "scale " + scale + " (" + getMemorySize() + " bytes of images), frames " + framesPainted + " (" + fullFramesPainted + " full), "
+                + (framesPainted == 0 ? 0 : pixelsPainted / framesPainted) + " pixels/frame (screen " + screenWidth * screenHeight + "), mode "
+                + MODE_NAMES[mode] + (mode == MODE_AUTO ? " (" + MODE_NAMES[getPaintMode()] + ", lcdui " + benchmarkTimes[MODE_LCDUI]
+                + " ms, RGB " + benchmarkTimes[MODE_FRAMEBUFFER] + " ms for " + BENCHMARK_FRAMES + " frames)" : "")
+                + ", " + interpolatedFrames + " interpolated, " + stage.snapshotRetries + " snapshot copies retried, "
+                + wrapTilesPainted + " wrap tiles, " + overviewTilesPainted + " overview tiles";
+    }
+
+    /**
+     * Renders only the tiles that need repainting, in the background image of the current sprite size
+     * (or in the wrap-around buffer, see repaintWrapTiles)
+     */
+    public void repaintBackgroundTiles() {
+        boolean wraps = spriteSize == SPRITE_NORMAL && wrapImage != null;
+        Image backgroundImage = backgroundImages[spriteSize];
+        if (backgroundImage == null && !wraps) {
+            return;
+        }
+        byte[] drawnTiles = backgroundTiles[spriteSize];
+        if (view.stageSerial != backgroundSerials[spriteSize] || (spriteSize == SPRITE_NORMAL && !isBackgroundDrawn)) {
+            // A new stage (or a background left behind by the framebuffer): every tile needs repainting
+            backgroundSerials[spriteSize] = view.stageSerial;
+            if (spriteSize == SPRITE_NORMAL) {
+                isBackgroundDrawn = true;
+            }
+            backgroundVersions[spriteSize] = -1;
+            for (int i = 0; i < LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT; i++) {
+                drawnTiles[i] = -1;
+            }
+            if (wraps) {
+                resetWrapSlots();
+            }
+        }
+        if (wraps) {
+            // The tiles appearance is still tracked for the dirty rectangles (see prepareFrame)
+            if (view.tilesVersion != backgroundVersions[spriteSize]) {
+                backgroundVersions[spriteSize] = view.tilesVersion;
+                System.arraycopy(view.tiles, 0, drawnTiles, 0, drawnTiles.length);
+            }
+            repaintWrapTiles();
+            return;
+        }
+        if (view.tilesVersion == backgroundVersions[spriteSize]) {
+            return;
+        }
+        backgroundVersions[spriteSize] = view.tilesVersion;
+        Graphics g = backgroundImage.getGraphics();
+        int width = spriteWidth[spriteSize], height = spriteHeight[spriteSize];
+        // Loop on every tile whose appearance has changed
+        for (int tileIndex = 0; tileIndex < LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT; tileIndex++) {
+            int tileAppearance = view.tiles[tileIndex];
+            if (drawnTiles[tileIndex] != tileAppearance) {
+                drawnTiles[tileIndex] = (byte) tileAppearance;
+                int x = tileIndex % LodeRunnerStage.STAGE_WIDTH * width;
+                int y = tileIndex / LodeRunnerStage.STAGE_WIDTH * height;
+                if (spriteSize == SPRITE_SMALL) {
+                    // Small tiles are drawn over a black background, empty ones are left black
+                    overviewTilesPainted++;
+                    g.setColor(0);
+                    g.fillRect(x, y, width, height);
+                    if (tileAppearance == LodeRunnerStage.TILE_VOID) {
+                        continue;
+                    }
+                }
+                sprites[spriteSize].paint(g, spriteMap[tileAppearance], x, y);
+            }
+        }
+    }
+
+    /**
+     * Render the stage's sprites (holes, vilains and hero). Only the sprites in the tile columns under the clip are
+     * visited (see LodeRunnerSnapshot.indexColumns), and painted in order. Vilains out of the screen are signaled by
+     * their direction, over the sprites.
+     */
+    public void paintSprites(Graphics g) {
+        GameSprite sprite = sprites[spriteSize];
+        int width = spriteWidth[spriteSize], height = spriteHeight[spriteSize];
+        int count = findVisibleSprites(g.getClipX(), g.getClipY(), g.getClipWidth(), g.getClipHeight());
+        int vx = visibleX, vy = visibleY, vw = visibleWidth, vh = visibleHeight;
+        for (int n = 0; n < count; n++) {
+            int i = visibleSprites[n];
+            int x = getSpriteX(i, width), y = getSpriteY(i, height);
+            if (isOnScreen(x, y, width, height, vx, vy, vw, vh)) {
+                sprite.paint(g, view.frames[i], x, y);
+            }
+        }
+        // Vilains out of the screen are signaled by their direction
+        for (int i = view.vilainsStart; i < view.vilainsEnd; i++) {
+            if (!isOnScreen(getSpriteX(i, width), getSpriteY(i, height), width, height, vx, vy, vw, vh)) {
+                computeDirection(view.xCenters[i] * width / 6, view.yCenters[i] * height / 5, vx, vy, vw, vh);
+                drawDiamond(g, direction[0], direction[1], direction[2]);
+            }
+        }
+        // Render the hero's floating message, if any
+        if (view.heroMessageChests >= 0 && spriteSize == SPRITE_NORMAL) {
+            font.drawChars(g, messageChars, 0, formatMessage(), getMessageX(), getMessageY(), Graphics.HCENTER | Graphics.BOTTOM);
+        }
+    }
+
+    /**
+     * Find the sprites in the tile columns under a clip, in painting order, into visibleSprites, and return their count.
+     * Their visible area (the screen in normal size, whatever the clip) is set in visibleX, visibleY, visibleWidth and visibleHeight.
+     */
+    private int findVisibleSprites(int clipX, int clipY, int clipWidth, int clipHeight) {
+        int width = spriteWidth[spriteSize];
+        int vx = clipX, vy = clipY, vw = clipWidth, vh = clipHeight;
+        if (spriteSize == SPRITE_NORMAL && screenWidth > 0) {
+            vx = -translateX;
+            vy = -translateY;
+            vw = screenWidth;
+            vh = screenHeight;
+        }
+        visibleX = vx;
+        visibleY = vy;
+        visibleWidth = vw;
+        visibleHeight = vh;
+        // Sprites of the columns under the clip: a sprite overlaps the column at its right,
+        // and is rendered up to a column away from its snapshot column while moving
+        int margin = isAnimating ? width : 0;
+        int column0 = getFirstTile(Math.max(0, Math.max(vx, clipX) - width - margin), width, LodeRunnerStage.STAGE_WIDTH);
+        int column1 = getLastTile(Math.min(vx + vw, clipX + clipWidth) + margin, width, LodeRunnerStage.STAGE_WIDTH);
+        int count = 0;
+        if (column0 <= column1) {
+            count = view.columnStarts[column1 + 1] - view.columnStarts[column0];
+            if (visibleSprites.length < count) {
+                visibleSprites = new int[view.columnSprites.length];
+            }
+            // Back in painting order (insertion sort: columns are already in order)
+            for (int n = 0; n < count; n++) {
+                int i = view.columnSprites[view.columnStarts[column0] + n], m = n;
+                for (; m > 0 && visibleSprites[m - 1] > i; m--) {
+                    visibleSprites[m] = visibleSprites[m - 1];
+                }
+                visibleSprites[m] = i;
+            }
+        }
+        return count;
+    }
+
+    /** Format the hero's floating message (chests taken / chests in stage) into messageChars, and return its length */
+    private int formatMessage() {
+        int length = GameHud.formatNumber(messageChars, 0, view.heroMessageChests, 1);
+        messageChars[length++] = '/';
+        return GameHud.formatNumber(messageChars, length, view.stageChests, 1);
+    }
+
+    /** Horizontal center of the hero's floating message, in normal size */
+    private int getMessageX() {
+        return subHeroCenterX * spriteWidth[SPRITE_NORMAL] / (6 * SUBSTEPS);
+    }
+
+    /** Bottom of the hero's floating message, in normal size */
+    private int getMessageY() {
+        return subHeroY * spriteHeight[SPRITE_NORMAL] / (5 * SUBSTEPS) - view.heroMessageAge * spriteHeight[SPRITE_NORMAL] / LodeRunnerHero.DELAY_MESSAGE / 2;
+    }
+
+    /** Check if a sprite at a given position is at least partly in a visible area */
+    private static boolean isOnScreen(int x, int y, int width, int height, int vx, int vy, int vw, int vh) {
+        return x + width >= vx && y + height >= vy && x <= vx + vw && y <= vy + vh;
+    }
+
+    /** Check if the render snapshot in view is the one of the loaded stage */
+    private boolean isViewLoaded() {
+        return stage.isLoaded && view.stageSerial == stage.getSerial();
+    }
+
+    /** Draw a small red and white diamond */
+    private static void drawDiamond(Graphics g, int x, int y, int size) {
+        g.setColor(0x00ff0000);
+        if (size > 0) {
+            g.drawLine(x - 1, y, x, y - 1);
+            g.drawLine(x, y - 1, x + 1, y);
+            g.drawLine(x + 1, y, x, y + 1);
+            g.drawLine(x, y + 1, x - 1, y);
+            if (size > 1) {
+                g.drawLine(x - 2, y, x, y - 2);
+                g.drawLine(x, y - 2, x + 2, y);
+                g.drawLine(x + 2, y, x, y + 2);
+                g.drawLine(x, y + 2, x - 2, y);
+            }
+            g.setColor(0x00ffffff);
+        }
+        g.fillRect(x, y, 1, 1);
+    }
+
+    /** Draw a small red and white diamond into a framebuffer */
+    private static void drawDiamond(GameFramebuffer framebuffer, int x, int y, int size) {
+        for (int r = 1; r <= size; r++) {
+            for (int d = 0; d < r; d++) {
+                framebuffer.setPixel(x - r + d, y - d, 0x00ff0000);
+                framebuffer.setPixel(x + d, y - r + d, 0x00ff0000);
+                framebuffer.setPixel(x + r - d, y + d, 0x00ff0000);
+                framebuffer.setPixel(x - d, y + r - d, 0x00ff0000);
+            }
+        }
+        framebuffer.setPixel(x, y, size > 0 ? 0x00ffffff : 0x00ff0000);
+    }
+
+    /**
+     * Find the direction diamond of a vilain out of the visible area, centered at a given position in pixels.
+     * Its position and size are set in direction.
+     */
+    private void computeDirection(int xCenter, int yCenter, int vx, int vy, int vw, int vh) {
+        // Project this vilain's position on the visible area borders
+        int cw = vw - 1, ch = vh - 1;
+        int cx = 2 * vx + cw, cy = 2 * vy + ch;
+        int x = 2 * xCenter - cx, y = 2 * yCenter - cy;
+        int z = Integer.MAX_VALUE;
+        if (Math.abs(x) > cw) {
+            z = Math.min(z, Math.abs(x) * ch);
+        }
+        if (Math.abs(y) > ch) {
+            z = Math.min(z, Math.abs(y) * cw);
+        }
+        x = (cx + cw * ch * x / z) / 2;
+        y = (cy + cw * ch * y / z) / 2;
+        // Signal this vilain's direction with a small diamond
+        int size = 0;
+        if (100 * z < 200 * cw * ch) {
+            size++;
+        }
+        if (100 * z < 130 * cw * ch) {
+            size++;
+        }
+        direction[0] = x;
+        direction[1] = y;
+        direction[2] = size;
+    }
+
+    /** Translation along one axis, to center the hero (or the whole stage) on a screen of a given size */
+    private static int getTranslation(int screenSize, int stageSize, int heroCenter, boolean followsHero) {
+        if (!followsHero || screenSize >= stageSize) {
+            return (screenSize - stageSize) / 2;
+        } else if (heroCenter < screenSize / 2) {
+            return 0;
+        } else if (heroCenter > stageSize - screenSize / 2) {
+            return screenSize - stageSize;
+        }
+        return screenSize / 2 - heroCenter;
+    }
+
+    /** Compute the translation of the stage in normal size, on a screen of a given size */
+    private void computeTranslation(int w0, int h0) {
+        boolean followsHero = isViewLoaded() && view.hasHero;
+        translateX = getTranslation(w0, LodeRunnerStage.STAGE_WIDTH * spriteWidth[SPRITE_NORMAL], subHeroCenterX * spriteWidth[SPRITE_NORMAL] / (6 * SUBSTEPS), followsHero);
+        translateY = getTranslation(h0, LodeRunnerStage.STAGE_HEIGHT * spriteHeight[SPRITE_NORMAL], subHeroCenterY * spriteHeight[SPRITE_NORMAL] / (5 * SUBSTEPS), followsHero);
+    }
+
+    /** Translate to center the screen */
+    public void centerScreen(Graphics g) {
+        if (spriteSize == SPRITE_NORMAL) {
+            computeTranslation(screenWidth > 0 ? screenWidth : g.getClipWidth(), screenWidth > 0 ? screenHeight : g.getClipHeight());
+            g.translate(translateX, translateY);
+            return;
+        }
+        // Based on hero's position
+        boolean followsHero = isViewLoaded() && view.hasHero;
+        g.translate(getTranslation(g.getClipWidth(), LodeRunnerStage.STAGE_WIDTH * spriteWidth[spriteSize], subHeroCenterX * spriteWidth[spriteSize] / (6 * SUBSTEPS), followsHero),
+                getTranslation(g.getClipHeight(), LodeRunnerStage.STAGE_HEIGHT * spriteHeight[spriteSize], subHeroCenterY * spriteHeight[spriteSize] / (5 * SUBSTEPS), followsHero));
+    }
+
+    boolean isMessageAtTop() {
+        return view.hasHero && view.heroY * spriteHeight[SPRITE_NORMAL] / 5 <= 16 * scale && view.heroWasShowingMessage;
+    }
+
+    /** Set the rendering mode in normal size (one of the MODE_* constants), benchmarking again in MODE_AUTO */
+    public synchronized void setMode(int mode) {
+        this.mode = mode;
+        benchmarkFrames[MODE_LCDUI] = benchmarkFrames[MODE_FRAMEBUFFER] = 0;
+        benchmarkTimes[MODE_LCDUI] = benchmarkTimes[MODE_FRAMEBUFFER] = 0;
+        if (mode == MODE_LCDUI) {
+            framebuffer = null;
+            isFramebufferValid = false;
+        }
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Mode of the next frame in normal size: in MODE_AUTO, each mode paints BENCHMARK_FRAMES frames of the stage
+     * in turn, then the one that took less time is kept
+     */
+    private int getPaintMode() {
+        if (mode != MODE_AUTO) {
+            return mode;
+        } else if (benchmarkFrames[MODE_LCDUI] < BENCHMARK_FRAMES) {
+            return MODE_LCDUI;
+        } else if (benchmarkFrames[MODE_FRAMEBUFFER] < BENCHMARK_FRAMES) {
+            return MODE_FRAMEBUFFER;
+        }
+        return benchmarkTimes[MODE_FRAMEBUFFER] < benchmarkTimes[MODE_LCDUI] ? MODE_FRAMEBUFFER : MODE_LCDUI;
+    }
+
+    /** Allocate the framebuffer for the screen size. Returns false if there is not enough memory (lcdui is used). */
+    private boolean ensureFramebuffer() {
+        if (framebuffer == null || framebuffer.width != screenWidth || framebuffer.height != screenHeight) {
+            framebuffer = null;
+            isFramebufferValid = false;
+            try {
+                framebuffer = new GameFramebuffer(screenWidth, screenHeight);
+            } catch (OutOfMemoryError e) {
+                mode = MODE_LCDUI;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Render the stage, from the render snapshot in view (see LodeRunnerStage.acquireSnapshot).
+     * In normal size, only the dirty rectangles of the prepared frame are painted if the clip is within them,
+     * with lcdui or into the framebuffer (see getPaintMode).
+     */
+    public synchronized void paint(Graphics g) {
+        if (spriteSize == SPRITE_NORMAL) {
+            int paintMode = getPaintMode();
+            long startTime = System.currentTimeMillis();
+            if (paintMode == MODE_FRAMEBUFFER && isViewLoaded() && hasBackground() && screenWidth > 0 && ensureFramebuffer()) {
+                paintFramebuffer(g);
+            } else {
+                paintMode = MODE_LCDUI;
+                isFramebufferValid = false;
+                paintGraphics(g);
+            }
+            if (mode == MODE_AUTO && isViewLoaded() && benchmarkFrames[paintMode] < BENCHMARK_FRAMES) {
+                benchmarkFrames[paintMode]++;
+                benchmarkTimes[paintMode] += System.currentTimeMillis() - startTime;
+            }
+            return;
+        }
+        paintGraphics(g);
+    }
+
+    /**
+     * Render the prepared frame into the framebuffer, and push it to the screen with a single drawRGB.
+     * The framebuffer keeps the last painted frame, so that only the dirty rectangles are composed again.
+     */
+    private void paintFramebuffer(Graphics g) {
+        framesPainted++;
+        trackBackgroundTiles();
+        computeTranslation(screenWidth, screenHeight);
+        framebuffer.setTranslation(translateX, translateY);
+        int cx = g.getClipX(), cy = g.getClipY(), cw = g.getClipWidth(), ch = g.getClipHeight();
+        if (isFramebufferValid && !isFullFrame && dirtyCount > 0) {
+            // Only the dirty rectangles, unless the clip is larger (the screen was overdrawn)
+            getRepaintArea(clipArea);
+            if (cx >= clipArea[0] && cy >= clipArea[1] && cx + cw <= clipArea[0] + clipArea[2] && cy + ch <= clipArea[1] + clipArea[3]) {
+                for (int i = 0; i < dirtyCount; i++) {
+                    composeFramebuffer(dirtyX[i], dirtyY[i], dirtyWidth[i], dirtyHeight[i]);
+                    pixelsPainted += dirtyWidth[i] * dirtyHeight[i];
+                }
+                flushFramebuffer(g, clipArea[0], clipArea[1], clipArea[2], clipArea[3]);
+                return;
+            }
+        }
+        fullFramesPainted++;
+        pixelsPainted += cw * ch;
+        if (isFramebufferValid) {
+            composeFramebuffer(cx - translateX, cy - translateY, cw, ch);
+        } else {
+            // The whole screen, so that the framebuffer holds the painted frame
+            composeFramebuffer(-translateX, -translateY, screenWidth, screenHeight);
+            isFramebufferValid = true;
+        }
+        flushFramebuffer(g, cx, cy, cw, ch);
+    }
+
+    /** Push a rectangle of the framebuffer, in screen pixels, to the same place on a graphics context */
+    private void flushFramebuffer(Graphics g, int x, int y, int width, int height) {
+        int x0 = Math.max(x, 0), y0 = Math.max(y, 0);
+        int x1 = Math.min(x + width, framebuffer.width), y1 = Math.min(y + height, framebuffer.height);
+        if (x0 < x1 && y0 < y1) {
+            g.drawRGB(framebuffer.pixels, y0 * framebuffer.width + x0, framebuffer.width, x0, y0, x1 - x0, y1 - y0, false);
+        }
+    }
+
+    /** Compose a rectangle of the frame into the framebuffer, in stage pixels: the tiles, then the sprites over them */
+    private void composeFramebuffer(int x, int y, int width, int height) {
+        int tileWidth = spriteWidth[SPRITE_NORMAL], tileHeight = spriteHeight[SPRITE_NORMAL];
+        int stageWidth = LodeRunnerStage.STAGE_WIDTH * tileWidth, stageHeight = LodeRunnerStage.STAGE_HEIGHT * tileHeight;
+        framebuffer.setClip(x, y, width, height);
+        if (x < 0 || y < 0 || x + width > stageWidth || y + height > stageHeight) {
+            framebuffer.fillRect(x, y, width, height, 0);
+        }
+        // Tiles under the rectangle (the tiles are opaque)
+        GameSpriteSheet sprite = sprites[SPRITE_NORMAL].getSheet();
+        int x0 = getFirstTile(Math.max(0, x), tileWidth, LodeRunnerStage.STAGE_WIDTH);
+        int x1 = getLastTile(x + width - 1, tileWidth, LodeRunnerStage.STAGE_WIDTH);
+        int y0 = getFirstTile(Math.max(0, y), tileHeight, LodeRunnerStage.STAGE_HEIGHT);
+        int y1 = getLastTile(y + height - 1, tileHeight, LodeRunnerStage.STAGE_HEIGHT);
+        for (int row = y0; row <= y1; row++) {
+            for (int column = x0; column <= x1; column++) {
+                framebuffer.drawSprite(sprite, spriteMap[view.tiles[LodeRunnerStage.getTileIndex(column, row)]], column * tileWidth, row * tileHeight);
+            }
+        }
+        // Sprites, direction diamonds and hero's floating message, as in paintSprites
+        int count = findVisibleSprites(x, y, width, height);
+        int vx = visibleX, vy = visibleY, vw = visibleWidth, vh = visibleHeight;
+        for (int n = 0; n < count; n++) {
+            int i = visibleSprites[n];
+            int xSprite = getSpriteX(i, tileWidth), ySprite = getSpriteY(i, tileHeight);
+            if (isOnScreen(xSprite, ySprite, tileWidth, tileHeight, vx, vy, vw, vh)) {
+                framebuffer.drawSprite(sprite, view.frames[i], xSprite, ySprite);
+            }
+        }
+        for (int i = view.vilainsStart; i < view.vilainsEnd; i++) {
+            if (!isOnScreen(getSpriteX(i, tileWidth), getSpriteY(i, tileHeight), tileWidth, tileHeight, vx, vy, vw, vh)) {
+                computeDirection(view.xCenters[i] * tileWidth / 6, view.yCenters[i] * tileHeight / 5, vx, vy, vw, vh);
+                drawDiamond(framebuffer, direction[0], direction[1], direction[2]);
+            }
+        }
+        if (view.heroMessageChests >= 0) {
+            font.drawChars(framebuffer, messageChars, 0, formatMessage(), getMessageX(), getMessageY(), Graphics.HCENTER | Graphics.BOTTOM);
+        }
+    }
+
+    /**
+     * Track the tiles appearance for the dirty rectangles (see prepareFrame) without drawing the normal size background,
+     * which is drawn again entirely when lcdui paints again
+     */
+    private void trackBackgroundTiles() {
+        if (view.stageSerial != backgroundSerials[SPRITE_NORMAL] || view.tilesVersion != backgroundVersions[SPRITE_NORMAL]) {
+            backgroundSerials[SPRITE_NORMAL] = view.stageSerial;
+            backgroundVersions[SPRITE_NORMAL] = view.tilesVersion;
+            System.arraycopy(view.tiles, 0, backgroundTiles[SPRITE_NORMAL], 0, backgroundTiles[SPRITE_NORMAL].length);
+            isBackgroundDrawn = false;
+        }
+    }
+
+    /** Render the stage with lcdui (see paint) */
+    private void paintGraphics(Graphics g) {
+        if (spriteSize == SPRITE_NORMAL) {
+            framesPainted++;
+            if (!isFullFrame && dirtyCount > 0 && isViewLoaded() && hasBackground()) {
+                // Only the dirty rectangles, unless the clip is larger (the screen was overdrawn)
+                getRepaintArea(clipArea);
+                if (g.getClipX() >= clipArea[0] && g.getClipY() >= clipArea[1] && g.getClipX() + g.getClipWidth() <= clipArea[0] + clipArea[2]
+                        && g.getClipY() + g.getClipHeight() <= clipArea[1] + clipArea[3]) {
+                    paintDirtyRects(g);
+                    return;
+                }
+            }
+            fullFramesPainted++;
+            pixelsPainted += g.getClipWidth() * g.getClipHeight();
+        }
+        // Prepare the screen (clear, center)
+        g.setColor(0);
+        boolean hasBackground = spriteSize == SPRITE_NORMAL ? hasBackground() : backgroundImages[spriteSize] != null;
+        if (spriteSize == SPRITE_NORMAL && (!isViewLoaded() || !hasBackground)) {
+            g.fillRect(0, 0, g.getClipWidth(), g.getClipHeight());
+        }
+        centerScreen(g);
+        // deleting the message when hero is at the top
+        if (spriteSize == SPRITE_NORMAL && isMessageAtTop()) {
+            int blockSize = spriteWidth[SPRITE_NORMAL] ;
+            g.fillRect(subHeroCenterX * blockSize / (6 * SUBSTEPS) - blockSize, subHeroY * spriteHeight[SPRITE_NORMAL] / (5 * SUBSTEPS) - blockSize, 2 * blockSize, blockSize);
+        }
+
+        if (spriteSize == SPRITE_SMALL && (!isViewLoaded() || !hasBackground)) {
+            g.fillRect(0, 0, LodeRunnerStage.STAGE_WIDTH * spriteWidth[spriteSize], LodeRunnerStage.STAGE_HEIGHT * spriteHeight[spriteSize]);
+        }
+        if (isViewLoaded()) {
+            // Paint tiles, using background Image if available
+            if (spriteSize == SPRITE_NORMAL && hasBackground) {
+                // Only the visible part of the stage
+                repaintBackgroundTiles();
+                int x0 = Math.max(0, -translateX), y0 = Math.max(0, -translateY);
+                int x1 = Math.min(LodeRunnerStage.STAGE_WIDTH * spriteWidth[SPRITE_NORMAL], -translateX + screenWidth);
+                int y1 = Math.min(LodeRunnerStage.STAGE_HEIGHT * spriteHeight[SPRITE_NORMAL], -translateY + screenHeight);
+                if (x0 < x1 && y0 < y1) {
+                    drawBackground(g, x0, y0, x1 - x0, y1 - y0);
+                }
+            } else if (hasBackground) {
+                repaintBackgroundTiles();
+                g.drawImage(backgroundImages[spriteSize], 0, 0, Graphics.TOP | Graphics.LEFT);
+            } else {
+                paintTiles(g);
+            }
+            // Paint sprites
+            paintSprites(g);
+        }
+        // When drawing in small size, frame the stage by a white rectangle
+        if (spriteSize == SPRITE_SMALL) {
+            g.setColor(0x00ffffff);
+            g.drawRect(0, 0, LodeRunnerStage.STAGE_WIDTH * spriteWidth[spriteSize], LodeRunnerStage.STAGE_HEIGHT * spriteHeight[spriteSize]);
+        }
+        // Revert translation
+        g.translate(-g.getTranslateX(), -g.getTranslateY());
+    }
+}
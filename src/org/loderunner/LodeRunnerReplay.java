@@ -0,0 +1,268 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.io.*;
+
+/**
+ * Recording of a Lode Runner play session, to be replayed exactly (see LodeRunnerStage.step).
+ * A session is fully defined by its level, random seed, initial AI difficulty and the player
+ * inputs with their tick. The binary log format is:
+ * - MAGIC (4 bytes), VERSION (1 byte)
+ * - level (2 bytes), difficulty (1 byte), seed (8 bytes)
+ * - one record per input: ticks elapsed since the previous input (variable length unsigned integer,
+ *   7 bits per byte, lowest bits first) and the input (1 byte)
+ * - an end record: ticks elapsed until the end of the session, and INPUT_END
+ * A few hundred inputs take a few hundred bytes.
+ */
+class LodeRunnerReplay {
+
+    /** Magic bytes of a replay log */
+    public static final byte[] MAGIC = {'L', 'R', 'R', 'P'};
+    /** Current version of the replay log format */
+    public static final int VERSION = 1;
+    /** Input code of the end record */
+    private static final int INPUT_END = 0xff;
+    /** Level, random seed and initial AI difficulty of the session */
+    private int level, difficulty;
+    private long seed;
+    /** Number of recorded inputs, with their tick and value */
+    private int inputsCount = 0;
+    private int[] ticks = new int[32], inputs = new int[32];
+    /** Tick of the end of the session, -1 while recording */
+    private int endTick = -1;
+    /** Index of the next input to be played */
+    private int playCursor = 0;
+
+    /** Start the recording of a session */
+    LodeRunnerReplay(int level, long seed, int difficulty) {
+        this.level = level;
+        this.seed = seed;
+        this.difficulty = difficulty;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /** Tick of the end of the session, -1 while recording */
+    public int getEndTick() {
+        return endTick;
+    }
+
+    public int getInputsCount() {
+        return inputsCount;
+    }
+
+    /** Record an input (other than INPUT_NONE) given at a tick */
+    public void record(int tick, int input) {
+        if (endTick >= 0 || (inputsCount > 0 && tick <= ticks[inputsCount - 1])) {
+            throw new IllegalStateException();
+        }
+        if (inputsCount == ticks.length) {
+            int[] newTicks = new int[2 * inputsCount], newInputs = new int[2 * inputsCount];
+            System.arraycopy(ticks, 0, newTicks, 0, inputsCount);
+            System.arraycopy(inputs, 0, newInputs, 0, inputsCount);
+            ticks = newTicks;
+            inputs = newInputs;
+        }
+        ticks[inputsCount] = tick;
+        inputs[inputsCount] = input;
+        inputsCount++;
+    }
+
+    /** Forget the recorded inputs given at a given tick or later (see LodeRunnerStage.INPUT_REWIND) */
+    public void truncate(int tick) {
+        if (endTick >= 0) {
+            throw new IllegalStateException();
+        }
+        while (inputsCount > 0 && ticks[inputsCount - 1] >= tick) {
+            inputsCount--;
+        }
+    }
+
+    /** End the recording at a given tick */
+    public void finish(int tick) {
+        if (endTick < 0) {
+            endTick = Math.max(tick, inputsCount == 0 ? 0 : ticks[inputsCount - 1]);
+        }
+    }
+
+    /** Restart the playback from the first input */
+    public void rewind() {
+        playCursor = 0;
+    }
+
+    /** Get the input to be played at a given tick (INPUT_NONE if none). Ticks must be played in order. */
+    public int getInput(int tick) {
+        while (playCursor < inputsCount && ticks[playCursor] < tick) {
+            playCursor++;
+        }
+        if (playCursor < inputsCount && ticks[playCursor] == tick) {
+            return inputs[playCursor++];
+        }
+        return LodeRunnerStage.INPUT_NONE;
+    }
+
+    /** Check if a value is a valid stage input */
+    private static boolean isValidInput(int input) {
+        return (input >= LodeRunnerCharacter.MOVE_RUN_LEFT && input <= LodeRunnerCharacter.MOVE_CLIMB_DOWN)
+                || input == LodeRunnerHero.MOVE_DIG_LEFT || input == LodeRunnerHero.MOVE_DIG_RIGHT
+                || input == LodeRunnerStage.INPUT_DIG
+                || (input >= LodeRunnerStage.INPUT_DIFFICULTY && input < LodeRunnerStage.INPUT_DIFFICULTY + LodeRunnerPathfinder.DIFFICULTIES);
+    }
+
+    /** Write a variable length unsigned integer */
+    private static void writeVarInt(DataOutput output, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            output.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    /** Read a variable length unsigned integer */
+    private static int readVarInt(DataInput input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Corrupted replay log: bad tick delta");
+    }
+
+    /** Write the log of a finished session */
+    public void write(DataOutput output) throws IOException {
+        if (endTick < 0) {
+            throw new IllegalStateException();
+        }
+        output.write(MAGIC);
+        output.writeByte(VERSION);
+        output.writeShort(level);
+        output.writeByte(difficulty);
+        output.writeLong(seed);
+        writeRecords(output);
+        writeVarInt(output, endTick - (inputsCount == 0 ? 0 : ticks[inputsCount - 1]));
+        output.writeByte(INPUT_END);
+    }
+
+    /** Write one record per recorded input */
+    private void writeRecords(DataOutput output) throws IOException {
+        int previousTick = 0;
+        for (int i = 0; i < inputsCount; i++) {
+            writeVarInt(output, ticks[i] - previousTick);
+            output.writeByte(inputs[i]);
+            previousTick = ticks[i];
+        }
+    }
+
+    /** Write the inputs recorded so far, to save a session in progress (see readInputs) */
+    public void writeInputs(DataOutput output) throws IOException {
+        writeVarInt(output, inputsCount);
+        writeRecords(output);
+    }
+
+    /** Read the inputs written by writeInputs into an empty recording */
+    public void readInputs(DataInput input) throws IOException {
+        int count = readVarInt(input);
+        int tick = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = readVarInt(input);
+            if (delta == 0 && i > 0) {
+                throw new IOException("Corrupted inputs: two inputs at tick " + tick);
+            }
+            tick += delta;
+            int value = input.readUnsignedByte();
+            if (tick < 0 || !isValidInput(value)) {
+                throw new IOException("Corrupted inputs: bad input " + value + " at tick " + tick);
+            }
+            record(tick, value);
+        }
+    }
+
+    /** Get the log of a finished session */
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        write(new DataOutputStream(stream));
+        return stream.toByteArray();
+    }
+
+    /** Read and check a whole replay log. Bad or truncated logs throw an IOException describing the error. */
+    public static LodeRunnerReplay read(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(stream);
+        LodeRunnerReplay replay = null;
+        try {
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (input.readByte() != MAGIC[i]) {
+                    throw new IOException("Not a replay log");
+                }
+            }
+            int version = input.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported replay log version " + version);
+            }
+            int level = input.readUnsignedShort();
+            if (level >= LodeRunnerStage.MAX_LEVELS) {
+                throw new IOException("Corrupted replay log: bad level " + level);
+            }
+            int difficulty = input.readUnsignedByte();
+            if (difficulty >= LodeRunnerPathfinder.DIFFICULTIES) {
+                throw new IOException("Corrupted replay log: bad difficulty " + difficulty);
+            }
+            replay = new LodeRunnerReplay(level, input.readLong(), difficulty);
+            int tick = 0;
+            while (true) {
+                int delta = readVarInt(input);
+                if (delta == 0 && replay.inputsCount > 0) {
+                    throw new IOException("Corrupted replay log: two inputs at tick " + tick);
+                }
+                tick += delta;
+                if (tick < 0) {
+                    throw new IOException("Corrupted replay log: tick overflow");
+                }
+                int value = input.readUnsignedByte();
+                if (value == INPUT_END) {
+                    replay.endTick = tick;
+                    break;
+                }
+                if (!isValidInput(value)) {
+                    throw new IOException("Corrupted replay log: bad input " + value + " at tick " + tick);
+                }
+                replay.record(tick, value);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated replay log" + (replay == null ? "" : " after " + replay.inputsCount + " inputs"));
+        }
+        if (input.read() >= 0) {
+            throw new IOException("Corrupted replay log: data after the end record");
+        }
+        return replay;
+    }
+
+    /**
+     * Play a whole finished session on a stage, as fast as possible.
+     * The stage is loaded from the session's level and seed, and is left at the end of the session.
+     */
+    public void play(LodeRunnerStage stage) throws IOException {
+        stage.pathfinder.setDifficulty(difficulty);
+        stage.loadFromResource(level, seed);
+        rewind();
+        while (stage.tick < endTick && !stage.endCompleted && !stage.endHeroDied) {
+            stage.step(getInput(stage.tick));
+        }
+    }
+}
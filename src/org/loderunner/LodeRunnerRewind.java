@@ -0,0 +1,300 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+/**
+ * History of the last ticks of a stage, to go back in time (see LodeRunnerStage.INPUT_REWIND).
+ * A frame is recorded after every tick into a ring buffer of ints allocated once:
+ * - every KEYFRAME_TICKS ticks, a keyframe holds the whole state (tiles packed 8 per int,
+ *   every character packed in 2 ints, see LodeRunnerCharacter.packPosition)
+ * - other frames only hold the tiles and characters changed since the previous frame
+ * - every frame holds the tick, random generator state, exit, statistics, hero's message, sequencer cursor and holes
+ * The oldest frames are dropped, a whole keyframe interval at a time, when the history exceeds
+ * HISTORY_TICKS or the buffer is full. Restoring a frame replays the frames from the keyframe before
+ * it into the previous state arrays, then copies them into the stage, without any allocation.
+ * The AI guidance (see LodeRunnerPathfinder) is not part of the history.
+ */
+class LodeRunnerRewind {
+
+    /** Number of ticks between two keyframes */
+    public static final int KEYFRAME_TICKS = 30;
+    /** Maximum number of ticks in history: 10 seconds (see GameCanvas.FRAMERATE_MILLISEC), plus a keyframe interval */
+    public static final int HISTORY_TICKS = 150 + KEYFRAME_TICKS;
+    /** Number of ticks to go back on INPUT_REWIND (3 seconds) */
+    public static final int REWIND_TICKS = 45;
+    /** Size of the ring buffer, in ints */
+    public static final int BUFFER_SIZE = 8192;
+    /** First int of a frame: a keyframe or a frame of changes */
+    private static final int FRAME_KEY = 1, FRAME_DELTA = 0;
+    private static final int TILES = LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT;
+    /** Lode Runner stage whose history is kept */
+    private LodeRunnerStage stage;
+    /** Ring buffer of frames */
+    private final int[] buffer = new int[BUFFER_SIZE];
+    /** Offset of the first frame, offset of the next frame to be written, and number of ints in use */
+    private int bufferStart = 0, bufferEnd = 0, bufferUsed = 0;
+    /** Ring of the offsets of the frames, one per tick in history */
+    private final int[] frameOffsets = new int[HISTORY_TICKS];
+    /** Index in frameOffsets of the first frame, and number of frames */
+    private int firstFrame = 0, framesCount = 0;
+    /** Tick of the first frame */
+    private int firstTick = 0;
+    /** Offset of the next int to be read or written */
+    private int cursor;
+    /** State of the last recorded (or restored) frame: tiles, tiles version and characters (hero first, 2 ints each) */
+    private final int[] tiles = new int[TILES];
+    /** Current tiles of the stage, compared to the last frame's */
+    private final int[] currentTiles = new int[TILES];
+    private int tilesVersion = -1;
+    private int[] characters = new int[0];
+    /** Maximum number of ints in use (statistics) */
+    public int maxBufferUsed = 0;
+    /** Number of restored frames (statistics) */
+    public int rewinds = 0;
+
+    LodeRunnerRewind(LodeRunnerStage stage) {
+        this.stage = stage;
+    }
+
+    /** Number of characters of the stage (hero first, then vilains) */
+    private int getCharactersCount() {
+        return (stage.hero != null ? 1 : 0) + stage.vilains.size();
+    }
+
+    /** Get a character of the stage (hero first, then vilains) */
+    private LodeRunnerCharacter getCharacter(int i) {
+        if (stage.hero != null) {
+            if (i == 0) {
+                return stage.hero;
+            }
+            i--;
+        }
+        return (LodeRunnerCharacter) stage.vilains.elementAt(i);
+    }
+
+    /** Forget the history of the previous stage, and record the current state of a newly loaded stage */
+    public void reset() {
+        bufferStart = bufferEnd = bufferUsed = 0;
+        firstFrame = framesCount = 0;
+        tilesVersion = -1;
+        if (characters.length != 2 * getCharactersCount()) {
+            characters = new int[2 * getCharactersCount()];
+        }
+        record();
+    }
+
+    /** Write an int at the cursor */
+    private void put(int value) {
+        buffer[cursor] = value;
+        if (++cursor == BUFFER_SIZE) {
+            cursor = 0;
+        }
+    }
+
+    /** Read the int at the cursor */
+    private int next() {
+        int value = buffer[cursor];
+        if (++cursor == BUFFER_SIZE) {
+            cursor = 0;
+        }
+        return value;
+    }
+
+    /** Offset of the frame following a given frame index (the next frame to be written for the last one) */
+    private int getFrameEnd(int frame) {
+        return frame + 1 < framesCount ? frameOffsets[(firstFrame + frame + 1) % HISTORY_TICKS] : bufferEnd;
+    }
+
+    /** Drop the oldest frame, and the frames depending on it */
+    private void dropFirstFrame() {
+        do {
+            int end = getFrameEnd(0);
+            bufferUsed -= (end - bufferStart + BUFFER_SIZE) % BUFFER_SIZE;
+            bufferStart = end;
+            firstFrame = (firstFrame + 1) % HISTORY_TICKS;
+            firstTick++;
+            framesCount--;
+        } while (framesCount > 0 && buffer[frameOffsets[firstFrame]] != FRAME_KEY);
+        if (framesCount == 0) {
+            bufferUsed = 0;
+        }
+    }
+
+    /** Record the state of the stage at the beginning of its current tick */
+    public void record() {
+        int charactersCount = getCharactersCount();
+        // Make room for the largest possible frame
+        int maxSize = 10 + stage.holes.size() + TILES + 3 * charactersCount;
+        while (framesCount == HISTORY_TICKS || (framesCount > 0 && BUFFER_SIZE - bufferUsed < maxSize)) {
+            dropFirstFrame();
+        }
+        boolean isKey = framesCount == 0 || stage.tick % KEYFRAME_TICKS == 0;
+        if (framesCount == 0) {
+            firstTick = stage.tick;
+        }
+        frameOffsets[(firstFrame + framesCount) % HISTORY_TICKS] = bufferEnd;
+        framesCount++;
+        cursor = bufferEnd;
+        put(isKey ? FRAME_KEY : FRAME_DELTA);
+        put(stage.tick);
+        put(stage.random.getState());
+        put(stage.exitEnabled ? 1 : 0);
+        put(stage.vilainsKilled);
+        put(stage.hero != null ? stage.hero.getMessageChests() : -1);
+        put(stage.vilainScheduler.getCursor());
+        put(stage.holes.size());
+        for (int i = 0; i < stage.holes.size(); i++) {
+            put(((LodeRunnerHole) stage.holes.elementAt(i)).pack());
+        }
+        // Tiles: packed 8 per int in keyframes, changed ones only otherwise
+        int countOffset = cursor, count = 0;
+        if (!isKey) {
+            put(0);
+        }
+        if (stage.tilesVersion != tilesVersion) {
+            tilesVersion = stage.tilesVersion;
+            stage.getTiles(currentTiles);
+            for (int i = 0; i < TILES; i++) {
+                if (currentTiles[i] != tiles[i]) {
+                    tiles[i] = currentTiles[i];
+                    if (!isKey) {
+                        put(i << 4 | tiles[i]);
+                        count++;
+                    }
+                }
+            }
+        }
+        if (isKey) {
+            for (int i = 0; i < TILES; i += 8) {
+                int packed = 0;
+                for (int j = 7; j >= 0; j--) {
+                    packed = packed << 4 | tiles[i + j];
+                }
+                put(packed);
+            }
+        } else {
+            buffer[countOffset] = count;
+        }
+        // Characters: all of them in keyframes, changed ones only otherwise
+        countOffset = cursor;
+        count = 0;
+        put(0);
+        for (int i = 0; i < charactersCount; i++) {
+            LodeRunnerCharacter character = getCharacter(i);
+            int position = character.packPosition(), counters = character.packCounters();
+            if (isKey || position != characters[2 * i] || counters != characters[2 * i + 1]) {
+                characters[2 * i] = position;
+                characters[2 * i + 1] = counters;
+                put(i);
+                put(position);
+                put(counters);
+                count++;
+            }
+        }
+        buffer[countOffset] = count;
+        bufferUsed += (cursor - bufferEnd + BUFFER_SIZE) % BUFFER_SIZE;
+        bufferEnd = cursor;
+        if (bufferUsed > maxBufferUsed) {
+            maxBufferUsed = bufferUsed;
+        }
+    }
+
+    /** Offset of a frame, given its index */
+    private int getFrameOffset(int frame) {
+        return frameOffsets[(firstFrame + frame) % HISTORY_TICKS];
+    }
+
+    /** Apply the tiles and characters of a frame to the state of the last frame */
+    private void readFrame(int frame) {
+        cursor = getFrameOffset(frame);
+        boolean isKey = next() == FRAME_KEY;
+        // Skip the tick, random state, exit, statistics, hero's message, sequencer cursor and holes
+        cursor = (cursor + 6) % BUFFER_SIZE;
+        int holesCount = next();
+        cursor = (cursor + holesCount) % BUFFER_SIZE;
+        if (isKey) {
+            for (int i = 0; i < TILES; i += 8) {
+                int packed = next();
+                for (int j = 0; j < 8; j++) {
+                    tiles[i + j] = packed & 0xf;
+                    packed >>>= 4;
+                }
+            }
+        } else {
+            for (int n = next(); n > 0; n--) {
+                int tile = next();
+                tiles[tile >> 4] = tile & 0xf;
+            }
+        }
+        for (int n = next(); n > 0; n--) {
+            int i = next();
+            characters[2 * i] = next();
+            characters[2 * i + 1] = next();
+        }
+    }
+
+    /**
+     * Restore the stage as it was at the beginning of a given tick, or as close as the history goes.
+     * The frames after the restored one are forgotten. Returns false if there is no history.
+     */
+    public boolean restore(int tick) {
+        if (framesCount == 0) {
+            return false;
+        }
+        int frame = Math.max(0, Math.min(tick - firstTick, framesCount - 1));
+        int keyframe = frame;
+        while (buffer[getFrameOffset(keyframe)] != FRAME_KEY) {
+            keyframe--;
+        }
+        for (int f = keyframe; f <= frame; f++) {
+            readFrame(f);
+        }
+        // Tiles and characters
+        stage.setTiles(tiles);
+        tilesVersion = stage.tilesVersion;
+        int charactersCount = getCharactersCount();
+        for (int i = 0; i < charactersCount; i++) {
+            getCharacter(i).unpack(characters[2 * i], characters[2 * i + 1]);
+        }
+        // Holes, reused
+        for (int i = stage.holes.size() - 1; i >= 0; i--) {
+            stage.releaseHole((LodeRunnerHole) stage.holes.elementAt(i));
+        }
+        cursor = (getFrameOffset(frame) + 1) % BUFFER_SIZE;
+        stage.tick = next();
+        stage.random.setState(next());
+        stage.exitEnabled = next() != 0;
+        stage.vilainsKilled = next();
+        int messageChests = next();
+        if (stage.hero != null) {
+            stage.hero.setMessageChests(messageChests);
+        }
+        int sequencerCursor = next();
+        for (int n = next(); n > 0; n--) {
+            LodeRunnerHole hole = stage.newHole(0, 0);
+            hole.unpack(next());
+            stage.holes.addElement(hole);
+        }
+        if (stage.vilainEngine != null) {
+            stage.vilainEngine.load();
+        }
+        stage.vilainScheduler.setCursor(sequencerCursor);
+        // Forget the frames after the restored one
+        bufferEnd = getFrameEnd(frame);
+        framesCount = frame + 1;
+        bufferUsed = (bufferEnd - bufferStart + BUFFER_SIZE) % BUFFER_SIZE;
+        rewinds++;
+        return true;
+    }
+
+    /** Number of bytes allocated for the history */
+    public int getMemorySize() {
+        return 4 * (BUFFER_SIZE + HISTORY_TICKS + 2 * TILES + characters.length);
+    }
+
+    /** Describe the history and its memory use */
+    public String getStatistics() {
+        return "history " + framesCount + " ticks in " + 4 * bufferUsed + " bytes (max " + 4 * maxBufferUsed + "), "
+                + getMemorySize() + " bytes allocated, " + rewinds + " rewinds";
+    }
+}
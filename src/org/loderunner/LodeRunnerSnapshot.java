@@ -0,0 +1,165 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+/**
+ * Render snapshot of a Lode Runner stage, published by the simulation at the end of each tick
+ * and read by the rendering (see LodeRunnerStage.publishSnapshot and LodeRunnerStage.acquireSnapshot).
+ * It holds everything the rendering needs, so that the rendering never reads the live stage:
+ * - the tiles appearance map
+ * - the sprites (holes, digging effects, vilains and hero) with their frames and positions
+ * - the hero's floating message and the HUD counters
+ * Positions are in 1/6 of a tile horizontally and 1/5 of a tile vertically (as characters' adjusts),
+ * so that they can be rendered at any sprite size.
+ */
+class LodeRunnerSnapshot {
+
+    /** Sequence number, odd while the snapshot is being written */
+    public volatile int sequence = 0;
+    /** Serial number of the loaded stage, increased at every stage load */
+    public int stageSerial = 0;
+    /** Stage tick at which the snapshot was published */
+    public int tick = 0;
+    /** Stage tiles version of the tiles appearance map (see LodeRunnerStage.tilesVersion) */
+    public int tilesVersion = -1;
+    /** Tiles appearance map (see LodeRunnerStage.getTileAppearance) */
+    public byte[] tiles = new byte[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+    /** Number of sprites */
+    public int spritesCount = 0;
+    /** Sprites frames, top left positions and center positions */
+    public int[] frames = new int[0], xs = new int[0], ys = new int[0], xCenters = new int[0], yCenters = new int[0];
+    /**
+     * Sprites indexes sorted by the tile column of their left side, in order within a column,
+     * and the start of each column in it (see indexColumns)
+     */
+    public int[] columnSprites = new int[0];
+    public int[] columnStarts = new int[LodeRunnerStage.STAGE_WIDTH + 1];
+    /** Range of the vilains' sprites (vilains out of the screen are signaled by a diamond) */
+    public int vilainsStart = 0, vilainsEnd = 0;
+    /** Flag set if the stage has a hero */
+    public boolean hasHero = false;
+    /** Hero's top left and center positions */
+    public int heroX = 0, heroY = 0, heroCenterX = 0, heroCenterY = 0;
+    /**
+     * Hero's floating message: the chests count it shows, as "chests/stageChests" (-1 if none),
+     * and its age, in heartBeats (see LodeRunnerHero.DELAY_MESSAGE)
+     */
+    public int heroMessageChests = -1;
+    public int heroMessageAge = 0;
+    /** Flag set if the hero has been showing a message until recently */
+    public boolean heroWasShowingMessage = false;
+    /** HUD counters: chests taken by the hero, chests in the stage, vilains in the stage */
+    public int heroChests = 0, stageChests = 0, vilainsCount = 0;
+
+    /** Remove every sprite, before writing a new snapshot */
+    public void clearSprites() {
+        spritesCount = vilainsStart = vilainsEnd = 0;
+        hasHero = false;
+        heroMessageChests = -1;
+    }
+
+    /** Make sure there is room for a given number of sprites */
+    public void ensureCapacity(int capacity) {
+        if (frames.length < capacity) {
+            capacity += 8;
+            frames = grow(frames, capacity);
+            xs = grow(xs, capacity);
+            ys = grow(ys, capacity);
+            xCenters = grow(xCenters, capacity);
+            yCenters = grow(yCenters, capacity);
+        }
+    }
+
+    private int[] grow(int[] array, int capacity) {
+        int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    /** Add a sprite, positioned on a tile */
+    public void addTileSprite(int frame, int xTile, int yTile) {
+        addSprite(frame, 6 * xTile, 5 * yTile, 6 * xTile + 3, 5 * yTile + 3);
+    }
+
+    /** Add a sprite, with top left and center positions */
+    public void addSprite(int frame, int x, int y, int xCenter, int yCenter) {
+        ensureCapacity(spritesCount + 1);
+        frames[spritesCount] = frame;
+        xs[spritesCount] = x;
+        ys[spritesCount] = y;
+        xCenters[spritesCount] = xCenter;
+        yCenters[spritesCount] = yCenter;
+        spritesCount++;
+    }
+
+    /**
+     * Copy another snapshot into this one. The other snapshot might be written meanwhile:
+     * the copy is only valid if its sequence number has not changed (see LodeRunnerStage.acquireSnapshot).
+     */
+    public void copyFrom(LodeRunnerSnapshot other) {
+        stageSerial = other.stageSerial;
+        tick = other.tick;
+        if (tilesVersion != other.tilesVersion) {
+            tilesVersion = other.tilesVersion;
+            System.arraycopy(other.tiles, 0, tiles, 0, tiles.length);
+        }
+        // Arrays are read once: the writer might grow them meanwhile
+        int[] otherFrames = other.frames, otherXs = other.xs, otherYs = other.ys;
+        int[] otherXCenters = other.xCenters, otherYCenters = other.yCenters;
+        int count = other.spritesCount;
+        if (count > otherFrames.length) {
+            count = otherFrames.length;
+        }
+        ensureCapacity(count);
+        System.arraycopy(otherFrames, 0, frames, 0, count);
+        System.arraycopy(otherXs, 0, xs, 0, Math.min(count, otherXs.length));
+        System.arraycopy(otherYs, 0, ys, 0, Math.min(count, otherYs.length));
+        System.arraycopy(otherXCenters, 0, xCenters, 0, Math.min(count, otherXCenters.length));
+        System.arraycopy(otherYCenters, 0, yCenters, 0, Math.min(count, otherYCenters.length));
+        spritesCount = count;
+        vilainsStart = Math.min(other.vilainsStart, count);
+        vilainsEnd = Math.min(other.vilainsEnd, count);
+        hasHero = other.hasHero;
+        heroX = other.heroX;
+        heroY = other.heroY;
+        heroCenterX = other.heroCenterX;
+        heroCenterY = other.heroCenterY;
+        heroMessageChests = other.heroMessageChests;
+        heroMessageAge = other.heroMessageAge;
+        heroWasShowingMessage = other.heroWasShowingMessage;
+        heroChests = other.heroChests;
+        stageChests = other.stageChests;
+        vilainsCount = other.vilainsCount;
+        indexColumns();
+    }
+
+    /** Index the sprites by tile column, so that the rendering only visits the visible columns */
+    public void indexColumns() {
+        if (columnSprites.length < spritesCount) {
+            columnSprites = new int[frames.length];
+        }
+        for (int column = 0; column <= LodeRunnerStage.STAGE_WIDTH; column++) {
+            columnStarts[column] = 0;
+        }
+        // Counting sort: count the sprites of each column, then place them after the previous columns'
+        for (int i = 0; i < spritesCount; i++) {
+            columnStarts[getColumn(i) + 1]++;
+        }
+        for (int column = 1; column <= LodeRunnerStage.STAGE_WIDTH; column++) {
+            columnStarts[column] += columnStarts[column - 1];
+        }
+        for (int i = 0; i < spritesCount; i++) {
+            columnSprites[columnStarts[getColumn(i)]++] = i;
+        }
+        // Each start has moved to the next column's start
+        for (int column = LodeRunnerStage.STAGE_WIDTH; column > 0; column--) {
+            columnStarts[column] = columnStarts[column - 1];
+        }
+        columnStarts[0] = 0;
+    }
+
+    /** Tile column of the left side of a sprite */
+    private int getColumn(int i) {
+        return Math.max(0, Math.min(xs[i] / 6, LodeRunnerStage.STAGE_WIDTH - 1));
+    }
+}
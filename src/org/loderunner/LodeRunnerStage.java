@@ -4,13 +4,13 @@ package org.loderunner;
 
 import java.util.*;
 import java.io.*;
-import javax.microedition.lcdui.*;
-import javax.microedition.midlet.MIDlet;
 
 /**
  * A Lode Runner stage or level is composed of
  * - a tiles array describing the stage landscape
  * - a Lode Runner hero and an array of Lode Runner vilains
+ * The stage is a headless simulation, run tick by tick (see step), without any MIDP dependency:
+ * its rendering is done from its published render snapshots (see LodeRunnerRenderer).
  */
 class LodeRunnerStage {
 
@@ -22,10 +22,6 @@ class LodeRunnerStage {
     public static final int STAGE_WIDTH = 28;
     /** Stage height in tiles */
     public static final int STAGE_HEIGHT = 16;
-    /** Tile/sprite width in pixels */
-    public static final int[] SPRITE_WIDTH = {12, 4};
-    /** Tile/sprite height in pixels */
-    public static final int[] SPRITE_HEIGHT = {11, 4};
     /** Core tile type constant for void/empty tile */
     public static final int TILE_VOID = 0;
     /** Core tile type constant for diggable brick tile */
@@ -52,28 +48,36 @@ class LodeRunnerStage {
     public static final int TILE_HOLE_FULL = 11;
     /** Volatile tile type constant used for brick completely digged (considered empty, can trap vilains) */
     public static final int TILE_HOLE_EMPTY = 12;
+    /** Frame of each tile type in the tiles sprite sheets "/res/Tiles 12x11.png" and "/res/Tiles 4x4.png" */
+    public static final int[] TILE_FRAMES = { /*Core*/14, 15, 12, 16, 17, 18, 19, 20, 21, 0, /*Volatile*/ 13, 75, 74};
     /** Tiles array describing the stage landscape. Values are tile type TILE_* constants. */
     private int[] tiles = new int[STAGE_WIDTH * STAGE_HEIGHT];
-    /** Lode Runner sprites (for both tiles & characters) */
-    public GameSprite[] sprites = new GameSprite[2];
-    /** Lode Runner small sprite font */
-    public GameFont font = null;
-    /** Mapping table from tile type to sprite index */
-    public static final int[] spriteMap = { /*Core*/14, 15, 12, 16, 17, 18, 19, 20, 21, 0, /*Volatile*/ 13, 75, 74};
-    /** Current sprite size */
-    public int spriteSize = SPRITE_NORMAL;
-    /** Sprite size constant for normal stage rendering */
-    public static final int SPRITE_NORMAL = 0;
-    /** Sprite size constant for small stage overview rendering */
-    public static final int SPRITE_SMALL = 1;
+    /** Version of the stage tiles, increased every time a tile (or the exit) changes */
+    public int tilesVersion = 0;
     /** Lode Runner game hero */
     public LodeRunnerHero hero = null;
     /** Lode Runner game vilains. Vector of LodeRunnerVilain elements. */
     public Vector vilains = null;
     /** Lode Runner holes in this stage. */
     public Vector holes = null;
-    /** Current random number generator for the stage */
+    /** Filled holes, to be reused by the next digged holes (see newHole) */
+    private Vector holesPool = new Vector();
+    /** Sequencer of the vilains' heartBeats */
+    public LodeRunnerVilainScheduler vilainScheduler = new LodeRunnerVilainScheduler(this);
+    /** Minimum number of vilains for a stage to use the array based vilain engine */
+    public static final int VILAIN_ENGINE_THRESHOLD = 24;
+    /** Minimum number of vilains for this stage to use the vilain engine (0 to always use it, see LodeRunnerEngineCheck) */
+    public int vilainEngineThreshold = VILAIN_ENGINE_THRESHOLD;
+    /** Array based vilain engine, updating the vilains instead of vilainScheduler on crowded stages, within its decisions budget (null otherwise) */
+    public LodeRunnerVilainEngine vilainEngine = null;
+    /** Number of threads computing the AI decisions of the vilain engine (1 on handsets, where CLDC cannot tell the processors count) */
+    public int vilainDecisionThreads = 1;
+    /** Shortest path guidance for the vilains (depending on AI difficulty) */
+    public LodeRunnerPathfinder pathfinder = new LodeRunnerPathfinder(this);
+    /** Current random number generator for the stage, seeded at every stage load */
     public GameRandom random = new GameRandom();
+    /** Seed of the random number generator when the stage was loaded */
+    private long seed = 0;
     /** Total number of chests to be collected in this stage */
     public int nChests = 0;
     /** Flag set if the exit of this stage is enabled */
@@ -82,105 +86,45 @@ class LodeRunnerStage {
     public boolean endHeroDied = false;
     /** Flag set if the hero has succesfully completed this stage */
     public boolean endCompleted = false;
-    /** Stage background pixel image */
-    private Image backgroundImage = null;
-    private Vector backgroundTilesToRepaint = null;
-    /** Game canvas using this stage*/
-    private LodeRunnerCanvas canvas = null;
+    /** Number of vilains killed since the stage was loaded (statistics) */
+    public int vilainsKilled = 0;
+    /** Serial number of the stage, increased at every stage load */
+    private int stageSerial = 0;
+    /** Render snapshots written by the simulation, alternatively */
+    private LodeRunnerSnapshot[] snapshots = {new LodeRunnerSnapshot(), new LodeRunnerSnapshot()};
+    /** Index of the last published render snapshot */
+    private volatile int publishedSnapshot = 0;
+    /** Number of snapshot copies retried because the snapshot was written meanwhile (statistics) */
+    public int snapshotRetries = 0;
     /** Stage loading state */
     public boolean isLoaded = false;
-    /** Stage loading is done in a separated thread */
-    private Thread loadingThread = null;
+    /** Level number of the stage being loaded or played */
+    private int loadedLevel = 0;
+    /** Ticks between two heartBeats of the vilains and of the holes (see step) */
+    public static final int VILAINS_TICKS = 2;
+    /** Number of ticks run since the stage was loaded (see step) */
+    public int tick = 0;
+    /** Player input constant for no input (other inputs are the hero's MOVE_* constants) */
+    public static final int INPUT_NONE = LodeRunnerCharacter.MOVE_NONE;
+    /** Player input constant for digging on the side the hero is facing */
+    public static final int INPUT_DIG = 16;
+    /** Player input constants for changing the AI difficulty (INPUT_DIFFICULTY + one of the DIFFICULTY_* constants) */
+    public static final int INPUT_DIFFICULTY = 32;
+    /** Player input constant for going back in time (see LodeRunnerRewind.REWIND_TICKS), never recorded */
+    public static final int INPUT_REWIND = 64;
+    /** Recording of the session played on this stage since it was loaded */
+    public LodeRunnerReplay recording = null;
+    /** History of the last ticks of this stage, for INPUT_REWIND (null if disabled) */
+    public LodeRunnerRewind rewind = null;
+    /** Current version of the stage state format (see serialize) */
+    public static final int STATE_VERSION = 2;
 
-    /** Initiatialize an empty stage. Load the sprites resources. */
-    LodeRunnerStage(LodeRunnerCanvas canvas) {
-        this.canvas = canvas;
-        try {
-            // Load game resource images (font and sprites)
-            font = new GameFont("/res/Font.png", 3, 5, "0123456789/");
-            for (int i = 0; i < 2; i++) {
-                sprites[i] = new GameSprite("/res/Tiles " + SPRITE_WIDTH[i] + "x" + SPRITE_HEIGHT[i] + ".png", SPRITE_WIDTH[i], SPRITE_HEIGHT[i], 0, 0);
-            }
-            // If enough memory, use a background image to speed up normal stage rendering
-            backgroundImage = Image.createImage(STAGE_WIDTH * SPRITE_WIDTH[SPRITE_NORMAL], STAGE_HEIGHT * SPRITE_HEIGHT[SPRITE_NORMAL]);
-            backgroundTilesToRepaint = new Vector();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /** Initiatialize an empty stage */
+    LodeRunnerStage() {
     }
 
-    /** Loading thread for asynchroneous stage building */
-    private class LoadingThread extends Thread {
-
-        /** Entry point of this asynchroneous loading thread */
-        public void run() {
-            try {
-                // In the original Apple II version, the levels can be found at offset 0x3000-0xc600
-                // (aligned on 0x100 bytes blocks), in "loderunner.dsk" and "ch_lode.dsk"
-                // "LodeRunner.bin" contains the usefull extracts of those two files
-                // (without the alignment to save more space in the jar archive)
-                // Each tile is encoded on 4 bits
-                DataInput input = new DataInputStream(MIDlet.class.getResourceAsStream("/res/LodeRunner.bin"));
-                // Read level's buffer
-                int level = canvas.level % MAX_LEVELS;
-                byte[] buffer = new byte[STAGE_WIDTH * STAGE_HEIGHT / 2];
-                input.skipBytes(buffer.length * level);
-                input.readFully(buffer);
-                // Decode tiles from buffer content
-                for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i++) {
-                    // Exit if thread is canceled
-                    if (isLoaded) {
-                        break;
-                    }
-                    // Decode next tile
-                    int tile = (i % 2 == 0) ? buffer[i / 2] & 0xf : (buffer[i / 2] >> 4) & 0xf;
-                    switch (tile) {
-                        // Create hero at his starting point
-                        case TILE_HERO:
-                            hero = new LodeRunnerHero(LodeRunnerStage.this);
-                            hero.moveToTile(i);
-                            tile = TILE_VOID;
-                            break;
-                        // Add vilains at their initial positions
-                        case TILE_MONK:
-                            LodeRunnerVilain vilain = new LodeRunnerVilain(LodeRunnerStage.this);
-                            vilain.moveToTile(i);
-                            vilains.addElement(vilain);
-                            tile = TILE_VOID;
-                            break;
-                        // Count number of chests
-                        case TILE_CHEST:
-                            nChests++;
-                            break;
-                    }
-                    tiles[i] = tile;
-                    // Track tiles to repaint
-                    if (backgroundTilesToRepaint != null) {
-                        backgroundTilesToRepaint.addElement(new Integer(i));
-                    }
-                    // Periodically yield to other threads
-                    if (i % STAGE_WIDTH == 0) {
-                        yield();
-                    }
-                }
-                // The show can go on...
-                exitEnabled = (nChests == 0);
-                isLoaded = true;
-            } catch (Exception e) {
-                e.printStackTrace();
-            } //  IOException, InterruptedException
-            loadingThread = null;
-            canvas.needsRepaint = GameCanvas.REPAINT_ALL;
-        }
-    }
-
-    /** Load a stage from a given level in the levels resource file */
-    public void loadFromResource() {
-        // Abort previous loading attempt
-        while (loadingThread != null) {
-            isLoaded = true;
-        }
-        // Reset members
+    /** Reset the stage to an empty, not loaded, stage */
+    public void unload() {
         isLoaded = false;
         hero = null;
         vilains = new Vector();
@@ -189,12 +133,274 @@ class LodeRunnerStage {
         exitEnabled = false;
         endHeroDied = false;
         endCompleted = false;
-        if (backgroundTilesToRepaint != null) {
-            backgroundTilesToRepaint.removeAllElements();
+        vilainsKilled = 0;
+        tick = 0;
+        vilainScheduler.reset();
+        pathfinder.reset();
+        tilesVersion++;
+        stageSerial++;
+        if (vilainEngine != null) {
+            vilainEngine.dispose();
+            vilainEngine = null;
+        }
+    }
+
+    /**
+     * Load a stage from a given level in the levels resource file, with a given random seed.
+     * The same level, seed and player inputs always give the same game.
+     * Loading is synchronous: the rendering layer may call this method from a separated thread.
+     */
+    public void loadFromResource(int level, long seed) throws IOException {
+        unload();
+        this.seed = seed;
+        random.setSeed(seed);
+        recording = new LodeRunnerReplay(level % MAX_LEVELS, seed, pathfinder.getDifficulty());
+        // In the original Apple II version, the levels can be found at offset 0x3000-0xc600
+        // (aligned on 0x100 bytes blocks), in "loderunner.dsk" and "ch_lode.dsk"
+        // "LodeRunner.bin" contains the usefull extracts of those two files
+        // (without the alignment to save more space in the jar archive)
+        // Each tile is encoded on 4 bits
+        InputStream stream = LodeRunnerStage.class.getResourceAsStream("/res/LodeRunner.bin");
+        if (stream == null) {
+            throw new IOException("Missing levels resource");
         }
-        // Asynchroneously load the stage
-        loadingThread = new LoadingThread();
-        loadingThread.start();
+        try {
+            DataInput input = new DataInputStream(stream);
+            // Read level's buffer
+            level = level % MAX_LEVELS;
+            loadedLevel = level;
+            byte[] buffer = new byte[STAGE_WIDTH * STAGE_HEIGHT / 2];
+            input.skipBytes(buffer.length * level);
+            input.readFully(buffer);
+            // Decode tiles from buffer content
+            for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i++) {
+                // Decode next tile
+                int tile = (i % 2 == 0) ? buffer[i / 2] & 0xf : (buffer[i / 2] >> 4) & 0xf;
+                switch (tile) {
+                    // Create hero at his starting point
+                    case TILE_HERO:
+                        hero = new LodeRunnerHero(this);
+                        hero.moveToTile(i);
+                        tile = TILE_VOID;
+                        break;
+                    // Add vilains at their initial positions
+                    case TILE_MONK:
+                        LodeRunnerVilain vilain = new LodeRunnerVilain(this);
+                        vilain.moveToTile(i);
+                        vilains.addElement(vilain);
+                        tile = TILE_VOID;
+                        break;
+                    // Count number of chests
+                    case TILE_CHEST:
+                        nChests++;
+                        break;
+                }
+                tiles[i] = tile;
+                // Periodically yield to other threads
+                if (i % STAGE_WIDTH == 0) {
+                    Thread.yield();
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        // Crowded stages use the array based vilain engine
+        if (vilains.size() >= vilainEngineThreshold) {
+            vilainEngine = new LodeRunnerVilainEngine(this);
+            vilainEngine.load();
+            vilainEngine.setDecisionThreads(vilainDecisionThreads);
+        }
+        // The show can go on...
+        exitEnabled = (nChests == 0);
+        if (rewind != null) {
+            rewind.reset();
+        }
+        publishSnapshot();
+        isLoaded = true;
+    }
+
+    /** Seed of the random number generator when the stage was loaded */
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Serial number of the stage, increased at every stage load */
+    public int getSerial() {
+        return stageSerial;
+    }
+
+    /**
+     * Run one tick of the stage, with a given player input (INPUT_NONE if none), recorded in recording:
+     * - the hero's heartBeat
+     * - every second tick, the vilains' heartBeat, then the stage's (holes) heartBeat
+     * The stage is over as soon as endCompleted or endHeroDied is set.
+     * INPUT_REWIND first restores the stage as it was REWIND_TICKS ago (or as far as its history goes), then
+     * plays that tick with a difficulty input resetting the AI guidance, which is not part of the history:
+     * the recording is cut at that tick and gets that input, so that the session still replays exactly.
+     */
+    public synchronized void step(int input) {
+        if (!isLoaded || endCompleted || endHeroDied) {
+            return;
+        }
+        if (input == INPUT_REWIND) {
+            input = INPUT_NONE;
+            if (rewind != null && rewind.restore(tick - LodeRunnerRewind.REWIND_TICKS)) {
+                recording.truncate(tick);
+                input = INPUT_DIFFICULTY + pathfinder.getDifficulty();
+            }
+        }
+        if (input != INPUT_NONE) {
+            recording.record(tick, input);
+        }
+        if (input >= INPUT_DIFFICULTY) {
+            pathfinder.setDifficulty(input - INPUT_DIFFICULTY);
+            input = INPUT_NONE;
+        }
+        // Hero's heartBeat
+        if (hero != null) {
+            if (input == INPUT_DIG) {
+                hero.requestMove(hero.lookLeft ? LodeRunnerHero.MOVE_DIG_LEFT : LodeRunnerHero.MOVE_DIG_RIGHT);
+            } else if (input != INPUT_NONE) {
+                hero.requestMove(input);
+            }
+            hero.heartBeat();
+            if (endCompleted || endHeroDied) {
+                tick++;
+                recording.finish(tick);
+                return;
+            }
+        }
+        if (tick % VILAINS_TICKS == 0) {
+            // Vilains' heartBeat, within the AI decisions budget
+            pathfinder.heartBeat();
+            if (vilainEngine != null) {
+                vilainEngine.heartBeat();
+            } else {
+                vilainScheduler.heartBeat();
+            }
+            // Stage's heartBeat: loop on every hole
+            for (Enumeration e = holes.elements(); e.hasMoreElements();) {
+                ((LodeRunnerHole) e.nextElement()).heartBeat();
+            }
+        }
+        tick++;
+        if (rewind != null) {
+            rewind.record();
+        }
+    }
+
+    /**
+     * Write the whole state of a loaded stage, to be resumed exactly by deserialize with no level reload:
+     * - STATE_VERSION, level, seed, tick and random generator state
+     * - tiles (4 bits each, as in the levels resource), chests, exit and statistics
+     * - hero, vilains and holes, in their heartBeat order
+     * - vilains' sequencer, AI guidance and the recording of the inputs so far
+     * A crowded stage takes about 1 kB at DIFFICULTY_EASY, and up to 3 kB more with a search in progress.
+     */
+    public synchronized void serialize(DataOutput output) throws IOException {
+        if (!isLoaded) {
+            throw new IllegalStateException();
+        }
+        output.writeByte(STATE_VERSION);
+        output.writeShort(loadedLevel);
+        output.writeLong(seed);
+        output.writeInt(tick);
+        output.writeInt(random.getState());
+        byte[] buffer = new byte[STAGE_WIDTH * STAGE_HEIGHT / 2];
+        for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i += 2) {
+            buffer[i / 2] = (byte) (tiles[i] | tiles[i + 1] << 4);
+        }
+        output.write(buffer);
+        output.writeShort(nChests);
+        output.writeBoolean(exitEnabled);
+        output.writeInt(vilainsKilled);
+        output.writeBoolean(hero != null);
+        if (hero != null) {
+            hero.serialize(output);
+        }
+        output.writeShort(vilains.size());
+        for (Enumeration e = vilains.elements(); e.hasMoreElements();) {
+            ((LodeRunnerVilain) e.nextElement()).serialize(output);
+        }
+        output.writeShort(holes.size());
+        for (Enumeration e = holes.elements(); e.hasMoreElements();) {
+            ((LodeRunnerHole) e.nextElement()).serialize(output);
+        }
+        vilainScheduler.serialize(output);
+        pathfinder.serialize(output);
+        output.writeByte(recording.getDifficulty());
+        recording.writeInputs(output);
+    }
+
+    /**
+     * Restore a stage state written by serialize. The stage is loaded again as it was, without reading
+     * the levels resource. A bad state throws an IOException describing the error, and leaves the stage unloaded.
+     */
+    public void deserialize(DataInput input) throws IOException {
+        unload();
+        int version = input.readUnsignedByte();
+        if (version != STATE_VERSION) {
+            throw new IOException("Unsupported stage state version " + version);
+        }
+        try {
+            loadedLevel = input.readUnsignedShort();
+            if (loadedLevel >= MAX_LEVELS) {
+                throw new IOException("Corrupted stage state: bad level " + loadedLevel);
+            }
+            seed = input.readLong();
+            tick = input.readInt();
+            random.setState(input.readInt());
+            byte[] buffer = new byte[STAGE_WIDTH * STAGE_HEIGHT / 2];
+            input.readFully(buffer);
+            for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i++) {
+                int tile = (i % 2 == 0) ? buffer[i / 2] & 0xf : (buffer[i / 2] >> 4) & 0xf;
+                if (tile == TILE_MONK || tile == TILE_HERO || (tile >= TILE_OUTSIDE && tile != TILE_HOLE_FULL && tile != TILE_HOLE_EMPTY)) {
+                    throw new IOException("Corrupted stage state: bad tile " + tile);
+                }
+                tiles[i] = tile;
+            }
+            nChests = input.readUnsignedShort();
+            exitEnabled = input.readBoolean();
+            vilainsKilled = input.readInt();
+            if (input.readBoolean()) {
+                hero = new LodeRunnerHero(this);
+                hero.deserialize(input);
+            }
+            for (int n = input.readUnsignedShort(); n > 0; n--) {
+                LodeRunnerVilain vilain = new LodeRunnerVilain(this);
+                vilain.deserialize(input);
+                vilains.addElement(vilain);
+            }
+            for (int n = input.readUnsignedShort(); n > 0; n--) {
+                LodeRunnerHole hole = new LodeRunnerHole(this, 0, 0);
+                hole.deserialize(input);
+                holes.addElement(hole);
+            }
+            if (vilains.size() >= vilainEngineThreshold) {
+                vilainEngine = new LodeRunnerVilainEngine(this);
+                vilainEngine.load();
+                vilainEngine.setDecisionThreads(vilainDecisionThreads);
+            }
+            vilainScheduler.deserialize(input);
+            pathfinder.deserialize(input);
+            int difficulty = input.readUnsignedByte();
+            if (difficulty >= LodeRunnerPathfinder.DIFFICULTIES) {
+                throw new IOException("Corrupted stage state: bad difficulty " + difficulty);
+            }
+            recording = new LodeRunnerReplay(loadedLevel, seed, difficulty);
+            recording.readInputs(input);
+        } catch (EOFException e) {
+            unload();
+            throw new IOException("Truncated stage state");
+        } catch (IOException e) {
+            unload();
+            throw e;
+        }
+        if (rewind != null) {
+            rewind.reset();
+        }
+        publishSnapshot();
+        isLoaded = true;
     }
 
     /** Get tile array index from x and y position of the tile. */
@@ -249,24 +455,53 @@ class LodeRunnerStage {
         return tile;
     }
 
+    /** Copy the raw tile types into a given array */
+    public void getTiles(int[] types) {
+        System.arraycopy(tiles, 0, types, 0, tiles.length);
+    }
+
+    /** Replace the raw tile types with the ones of a given array, without side effect (see LodeRunnerRewind) */
+    public void setTiles(int[] types) {
+        System.arraycopy(types, 0, tiles, 0, tiles.length);
+        tilesVersion++;
+    }
+
+    /** Get a newly digged hole at a given position, reusing a filled one if any */
+    public LodeRunnerHole newHole(int xTile, int yTile) {
+        int n = holesPool.size();
+        if (n == 0) {
+            return new LodeRunnerHole(this, xTile, yTile);
+        }
+        LodeRunnerHole hole = (LodeRunnerHole) holesPool.elementAt(n - 1);
+        holesPool.removeElementAt(n - 1);
+        hole.reset(xTile, yTile);
+        return hole;
+    }
+
+    /** Remove a hole from the stage, keeping it for reuse */
+    public void releaseHole(LodeRunnerHole hole) {
+        holes.removeElement(hole);
+        holesPool.addElement(hole);
+    }
+
     /** Set the tile type at a given postion */
     public void setTile(int xTile, int yTile, int type) {
         if (xTile < 0 || xTile >= STAGE_WIDTH || yTile < 0 || yTile >= STAGE_HEIGHT) {
             return;
         }
         tiles[getTileIndex(xTile, yTile)] = type;
-        // Background image (if any) is no more up to date
-        if (backgroundTilesToRepaint != null) {
-            backgroundTilesToRepaint.addElement(new Integer(getTileIndex(xTile, yTile)));
-        }
+        tilesVersion++;
         // Keep track of digged holes (for delayed refill)
         if (type == TILE_HOLE_EMPTY) {
-            holes.addElement(new LodeRunnerHole(this, xTile, yTile));
+            holes.addElement(newHole(xTile, yTile));
         }
     }
 
     /** Check if the given tile is occupied by a vilain */
     private boolean isVilainAt(int xTile, int yTile, boolean includeRespawning) {
+        if (vilainEngine != null) {
+            return vilainEngine.isVilainAt(xTile, yTile, includeRespawning);
+        }
         for (Enumeration e = vilains.elements(); e.hasMoreElements();) {
             LodeRunnerVilain vilain = ((LodeRunnerVilain) e.nextElement());
             if (vilain.xTile == xTile && vilain.yTile == yTile && (includeRespawning || vilain.currentMove != LodeRunnerVilain.MOVE_RESPAWN)) {
@@ -303,132 +538,73 @@ class LodeRunnerStage {
     public void enableExit() {
         if (!exitEnabled) {
             exitEnabled = true;
-            if (backgroundTilesToRepaint != null) {
-                for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i++) {
-                    if (tiles[i] == TILE_EXIT) {
-                        backgroundTilesToRepaint.addElement(new Integer(i));
-                    }
-                }
-            }
+            tilesVersion++;
         }
     }
 
-    /** Renders the stage's tiles */
-    public void paintTiles(Graphics g) {
-        boolean screenCleared = (spriteSize == SPRITE_SMALL || backgroundImage == null);
-        for (int x = 0; x < STAGE_WIDTH; x++) {
+    /**
+     * Publish the render snapshot of the stage, at the end of a simulation tick.
+     * The snapshot is written into the unpublished buffer, then published by swapping the index:
+     * there is a single writer, and the rendering never waits for it (see acquireSnapshot).
+     * Neither side takes the stage lock: the game loop publishes after step() has returned
+     * (see LodeRunnerCanvas.GameLoopTask.endSteps), the lock of step and serialize only keeping
+     * a saved stage state consistent with its tick.
+     */
+    public void publishSnapshot() {
+        int next = 1 - publishedSnapshot;
+        LodeRunnerSnapshot snapshot = snapshots[next];
+        snapshot.sequence++;
+        snapshot.stageSerial = stageSerial;
+        snapshot.tick = tick;
+        // Tiles appearance map is only written when the tiles have changed
+        if (snapshot.tilesVersion != tilesVersion) {
+            snapshot.tilesVersion = tilesVersion;
             for (int y = 0; y < STAGE_HEIGHT; y++) {
-                // Tiles are drawn according to their appearance
-                int tile = getTileAppearance(x, y);
-                // If screen has been cleared, empty tiles can be skipped
-                if (screenCleared && tile != TILE_VOID) {
-                    sprites[spriteSize].paint(g, spriteMap[tile], x * SPRITE_WIDTH[spriteSize], y * SPRITE_HEIGHT[spriteSize]);
+                for (int x = 0; x < STAGE_WIDTH; x++) {
+                    snapshot.tiles[getTileIndex(x, y)] = (byte) getTileAppearance(x, y);
                 }
             }
         }
-    }
-
-    /** Renders only the tiles that need repainting */
-    public void repaintBackgroundTiles() {
-        if (spriteSize != SPRITE_NORMAL || backgroundImage == null) {
-            return;
-        }
-        Graphics g = backgroundImage.getGraphics();
-        // Loop on every tile that needs repainting
-        for (Enumeration e = backgroundTilesToRepaint.elements(); e.hasMoreElements();) {
-            int tileIndex = ((Integer) e.nextElement()).intValue();
-            int xTile = tileIndex % LodeRunnerStage.STAGE_WIDTH;
-            int yTile = tileIndex / LodeRunnerStage.STAGE_WIDTH;
-            // Tiles are drawn according to their appearance
-            int tileAppearance = getTileAppearance(xTile, yTile);
-            sprites[spriteSize].paint(g, spriteMap[tileAppearance], xTile * SPRITE_WIDTH[spriteSize], yTile * SPRITE_HEIGHT[spriteSize]);
-        }
-        backgroundTilesToRepaint.removeAllElements();
-    }
-
-    /** Render the stage's sprites (hero and vilains) */
-    public void paintSprites(Graphics g) {
+        // Sprites: holes, vilains, then hero
+        snapshot.clearSprites();
         for (Enumeration e = holes.elements(); e.hasMoreElements();) {
-            ((LodeRunnerHole) e.nextElement()).paint(g);
+            ((LodeRunnerHole) e.nextElement()).publish(snapshot);
         }
+        snapshot.vilainsStart = snapshot.spritesCount;
         for (Enumeration e = vilains.elements(); e.hasMoreElements();) {
-            ((LodeRunnerVilain) e.nextElement()).paint(g);
+            ((LodeRunnerVilain) e.nextElement()).publish(snapshot);
         }
+        snapshot.vilainsEnd = snapshot.spritesCount;
+        snapshot.heroChests = 0;
         if (hero != null) {
-            hero.paint(g);
-        }
-    }
-
-    /** Translate to center the screen */
-    public void centerScreen(Graphics g) {
-        int w0 = g.getClipWidth(), h0 = g.getClipHeight();
-        int tx = 0, ty = 0;
-        if (isLoaded && hero != null) {
-            // Compute screen translation, based on hero's position
-            if (w0 >= STAGE_WIDTH * SPRITE_WIDTH[spriteSize]) {
-                tx = (w0 - STAGE_WIDTH * SPRITE_WIDTH[spriteSize]) / 2;
-            } else if (hero.getCenterX() < w0 / 2) {
-                tx = 0;
-            } else if (hero.getCenterX() > STAGE_WIDTH * SPRITE_WIDTH[spriteSize] - w0 / 2) {
-                tx = w0 - STAGE_WIDTH * SPRITE_WIDTH[spriteSize];
-            } else {
-                tx = w0 / 2 - hero.getCenterX();
-            }
-            if (h0 >= STAGE_HEIGHT * SPRITE_HEIGHT[spriteSize]) {
-                ty = (h0 - STAGE_HEIGHT * SPRITE_HEIGHT[spriteSize]) / 2;
-            } else if (hero.getCenterY() < h0 / 2) {
-                ty = 0;
-            } else if (hero.getCenterY() > STAGE_HEIGHT * SPRITE_HEIGHT[spriteSize] - h0 / 2) {
-                ty = h0 - STAGE_HEIGHT * SPRITE_HEIGHT[spriteSize];
-            } else {
-                ty = h0 / 2 - hero.getCenterY();
-            }
-        } else {
-            // Center stage
-            tx = (w0 - STAGE_WIDTH * SPRITE_WIDTH[spriteSize]) / 2;
-            ty = (h0 - STAGE_HEIGHT * SPRITE_HEIGHT[spriteSize]) / 2;
+            hero.publish(snapshot);
         }
-        g.translate(tx, ty);
-    }
-
-    boolean isMessageAtTop() {
-        return hero != null && hero.getY() <= 16 && hero.wasShowingMessage();
+        // HUD counters
+        snapshot.stageChests = nChests;
+        snapshot.vilainsCount = vilains.size();
+        snapshot.sequence++;
+        publishedSnapshot = next;
     }
 
-    /** Render the stage */
-    public void paint(Graphics g) {
-        // Prepare the screen (clear, center)
-        g.setColor(0);
-        if (spriteSize == SPRITE_NORMAL && (!isLoaded || backgroundImage == null)) {
-            g.fillRect(0, 0, g.getClipWidth(), g.getClipHeight());
-        }
-        centerScreen(g);
-        // deleting the message when hero is at the top
-        if (isMessageAtTop()) {
-            int blockSize = SPRITE_WIDTH[SPRITE_NORMAL] ;
-            g.fillRect(hero.getCenterX() - blockSize, hero.getY() - blockSize, 2 * blockSize, blockSize);
-        }
-
-        if (spriteSize == SPRITE_SMALL) {
-            g.fillRect(0, 0, STAGE_WIDTH * SPRITE_WIDTH[spriteSize], STAGE_HEIGHT * SPRITE_HEIGHT[spriteSize]);
-        }
-        if (isLoaded) {
-            // Paint tiles, using background Image if available
-            if (spriteSize == SPRITE_NORMAL && backgroundImage != null) {
-                repaintBackgroundTiles();
-                g.drawImage(backgroundImage, 0, 0, Graphics.TOP | Graphics.LEFT);
-            } else {
-                paintTiles(g);
+    /**
+     * Copy the last published render snapshot into a given view, before rendering.
+     * The copy is retried if the simulation has written the snapshot meanwhile
+     * (which requires it to publish during the copy, then to start writing the next snapshot).
+     */
+    public void acquireSnapshot(LodeRunnerSnapshot view) {
+        while (true) {
+            LodeRunnerSnapshot snapshot = snapshots[publishedSnapshot];
+            int sequence = snapshot.sequence;
+            if (sequence % 2 == 0) {
+                view.copyFrom(snapshot);
+                if (snapshot.sequence == sequence) {
+                    return;
+                }
+                // The tiles might be torn too
+                view.tilesVersion = -1;
             }
-            // Paint sprites
-            paintSprites(g);
-        }
-        // When drawing in small size, frame the stage by a white rectangle
-        if (spriteSize == SPRITE_SMALL) {
-            g.setColor(0x00ffffff);
-            g.drawRect(0, 0, STAGE_WIDTH * SPRITE_WIDTH[spriteSize], STAGE_HEIGHT * SPRITE_HEIGHT[spriteSize]);
+            snapshotRetries++;
+            Thread.yield();
         }
-        // Revert translation
-        g.translate(-g.getTranslateX(), -g.getTranslateY());
     }
 }
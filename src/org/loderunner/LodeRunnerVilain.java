@@ -2,7 +2,7 @@ package org.loderunner;
 
 /* Copyright � 2006 - Fabien GIGANTE */
 
-import javax.microedition.lcdui.*;
+import java.io.*;
 
 /**
  * The Lode Runner vilain character evolving within a game stage.
@@ -23,6 +23,8 @@ class LodeRunnerVilain extends LodeRunnerCharacter {
     public static final int DELAY_TRAPPED_HOLE = 32;
     /** Delay in heartbeats before respawn */
     public static final int DELAY_RESPAWN = 8;
+    /** Frame table of the vilains' animations (see LodeRunnerCharacter.buildFrames) */
+    private static final byte[] FRAMES = buildFrames(42, 21, 61, 66);
     /**
      * Is this vilain trapped in a digged hole?
      * - if currentMove equals MOVE_FALL_DOWN, he is falling into the hole
@@ -31,6 +33,44 @@ class LodeRunnerVilain extends LodeRunnerCharacter {
      */
     private boolean isTrapped;
 
+    /** Check if this vilain is trapped in a digged hole */
+    boolean isTrapped() {
+        return isTrapped;
+    }
+
+    /** Set the trapped status of this vilain (used by LodeRunnerVilainEngine) */
+    void setTrapped(boolean isTrapped) {
+        this.isTrapped = isTrapped;
+    }
+
+    /** Write the state of this vilain, including its trapped status */
+    public void serialize(DataOutput output) throws IOException {
+        super.serialize(output);
+        output.writeBoolean(isTrapped);
+    }
+
+    /** Read the state of this vilain written by serialize */
+    public void deserialize(DataInput input) throws IOException {
+        super.deserialize(input);
+        isTrapped = input.readBoolean();
+    }
+
+    /** Check that a restored move is one of the moves of this vilain */
+    protected boolean isValidMove(int move) {
+        return super.isValidMove(move) || move == MOVE_CLIMB_HOLE || move == MOVE_RESPAWN;
+    }
+
+    /** Pack the position and moves of this vilain, and its trapped status */
+    protected int packPosition() {
+        return super.packPosition() | (isTrapped ? 1 << 22 : 0);
+    }
+
+    /** Restore the state packed by packPosition and packCounters */
+    protected void unpack(int position, int counters) {
+        super.unpack(position, counters);
+        isTrapped = (position & 1 << 22) != 0;
+    }
+
     /** Initialize this vilain in the stage */
     LodeRunnerVilain(LodeRunnerStage stage) {
         super(stage);
@@ -45,7 +85,6 @@ class LodeRunnerVilain extends LodeRunnerCharacter {
 
     /** Compute the sprite frame number for painting this vilain */
     public int getFrame() {
-        int[] keyFrames = {42, 21, 61, 66};
         // When respawning
         if (currentMove == MOVE_RESPAWN) {
             if (delayBusy > DELAY_RESPAWN / 2) {
@@ -58,22 +97,13 @@ class LodeRunnerVilain extends LodeRunnerCharacter {
         if (isTrapped && currentMove == MOVE_NONE) {
             //... use falling sprites at the beggining ...
             if (delayBusy > DELAY_RESPAWN) {
-                return lookLeft ? keyFrames[0] + 5 : keyFrames[0] + 6;
+                return FRAMES[getFallIndex(lookLeft)];
             } //... and running sprites just before climbing out the hole
             else {
-                int frame = delayBusy % 2;
-                if (lookLeft && frame == 0) {
-                    frame = keyFrames[1];
-                } else if (lookLeft) {
-                    frame += keyFrames[3];
-                } else {
-                    frame += keyFrames[2];
-                }
-                return frame;
+                return FRAMES[getRunIndex(lookLeft, false, delayBusy % 2)];
             }
         }
-        // Get frame from "magic" keys (see LodeRunnerCharacter.getFrame)
-        return getFrame(keyFrames);
+        return getFrame(FRAMES);
     }
 
     /** Take the chest at this vilain's tile position. A vilain can hold only one chest. */
@@ -239,6 +269,11 @@ class LodeRunnerVilain extends LodeRunnerCharacter {
                     yHero -= 2;
                 }
             }
+            // Follow the shortest path towards the hero, if known (depending on AI difficulty)
+            int pathMove = stage.pathfinder.getMoveTowardsHero(xTile, yTile);
+            if (pathMove != MOVE_NONE && tryNextMove(pathMove)) {
+                return;
+            }
             // Try to move up or down towards the hero
             if (yHero < yTile && tryNextMove(MOVE_CLIMB_UP)) {
                 return;
@@ -337,6 +372,7 @@ class LodeRunnerVilain extends LodeRunnerCharacter {
 
     /** Kill this vilain */
     protected void kill() {
+        stage.vilainsKilled++;
         moveToTile(stage.computeRandomRespawnPoint());
         currentMove = MOVE_RESPAWN;
         delayBusy = DELAY_RESPAWN;
@@ -373,53 +409,4 @@ class LodeRunnerVilain extends LodeRunnerCharacter {
         }
         super.heartBeat();
     }
-
-    /** Draw a small red and white diamond */
-    private void drawDiamond(Graphics g, int x, int y, int size) {
-        g.setColor(0x00ff0000);
-        if (size > 0) {
-            g.drawLine(x - 1, y, x, y - 1);
-            g.drawLine(x, y - 1, x + 1, y);
-            g.drawLine(x + 1, y, x, y + 1);
-            g.drawLine(x, y + 1, x - 1, y);
-            if (size > 1) {
-                g.drawLine(x - 2, y, x, y - 2);
-                g.drawLine(x, y - 2, x + 2, y);
-                g.drawLine(x + 2, y, x, y + 2);
-                g.drawLine(x, y + 2, x - 2, y);
-            }
-            g.setColor(0x00ffffff);
-        }
-        g.fillRect(x, y, 1, 1);
-    }
-
-    /** Render this vilain */
-    public boolean paint(Graphics g) {
-        boolean isVisible = super.paint(g);
-        if (!isVisible) {
-            // Project this vilain's position on the clip borders
-            int cw = g.getClipWidth() - 1, ch = g.getClipHeight() - 1;
-            int cx = 2 * g.getClipX() + cw, cy = 2 * g.getClipY() + ch;
-            int x = 2 * getCenterX() - cx, y = 2 * getCenterY() - cy;
-            int z = Integer.MAX_VALUE;
-            if (Math.abs(x) > cw) {
-                z = Math.min(z, Math.abs(x) * ch);
-            }
-            if (Math.abs(y) > ch) {
-                z = Math.min(z, Math.abs(y) * cw);
-            }
-            x = (cx + cw * ch * x / z) / 2;
-            y = (cy + cw * ch * y / z) / 2;
-            // Signal this vilain's direction with a small diamond
-            int size = 0;
-            if (100 * z < 200 * cw * ch) {
-                size++;
-            }
-            if (100 * z < 130 * cw * ch) {
-                size++;
-            }
-            drawDiamond(g, x, y, size);
-        }
-        return isVisible;
-    }
 }
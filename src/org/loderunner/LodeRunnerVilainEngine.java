@@ -0,0 +1,765 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.io.*;
+
+/**
+ * Alternative engine for the vilains of a crowded stage.
+ * All vilains' states are kept in parallel primitive arrays and updated by a single batch loop,
+ * instead of one LodeRunnerVilain object per vilain reached through virtual calls.
+ * The behavior replicates LodeRunnerVilain exactly (including the order of random draws),
+ * so that the LodeRunnerVilain objects of the stage can be used as a rendering mirror:
+ * - load() copies the objects' states into the arrays
+ * - heartBeat() updates every vilain, then copies the arrays back into the objects
+ * A tile occupancy grid answers isVilainAt() in constant time.
+ *
+ * On multi-core JVMs, the AI decisions can be computed by several threads (see setDecisionThreads):
+ * - a read-only decision phase computes every deciding vilain's next move in parallel, on the
+ *   state frozen at the beginning of the heartBeat
+ * - the usual sequential update then commits those decisions in vilains order; a decision is
+ *   recomputed when an earlier vilain has changed the occupancy of a tile it read, and random
+ *   moves are still drawn in vilains order, so that results are identical to the serial engine
+ */
+final class LodeRunnerVilainEngine {
+
+    /** Flag set in flags[] if the vilain is facing left */
+    private static final int FLAG_LOOK_LEFT = 1;
+    /** Flag set in flags[] if the vilain is trapped in a digged hole (see LodeRunnerVilain.isTrapped) */
+    private static final int FLAG_TRAPPED = 2;
+    /** Lode Runner stage where the vilains evolve */
+    private final LodeRunnerStage stage;
+    /** Number of vilains */
+    private int count;
+    /** Position of each vilain, in tiles */
+    private int[] xTile, yTile;
+    /** Position of each vilain, relative to its tile (see LodeRunnerCharacter) */
+    private int[] xAdjust, yAdjust;
+    /** Direction of each vilain's move */
+    private int[] xDelta, yDelta;
+    /** Number of heartBeats before each vilain can move again */
+    private int[] delayBusy;
+    /** Current and next requested move of each vilain */
+    private int[] move, nextMove;
+    /** FLAG_* bits of each vilain */
+    private int[] flags;
+    /** Number of chests held by each vilain */
+    private int[] chests;
+    /** Number of living (not respawning) vilains on each tile */
+    private final int[] living = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+    /** Number of vilains (including respawning ones) on each tile */
+    private final int[] present = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+    /** Decision returned by Decider.decide when the random fallback move should be drawn */
+    private static final int DECISION_RANDOM = -1;
+    /** Value of specInitial[] for vilains without speculative decision */
+    private static final int SPEC_NONE = -2;
+    /** AI used by the updating thread */
+    private final Decider decider = new Decider();
+    /** Initial move used by each vilain's speculative decision, or SPEC_NONE */
+    private int[] specInitial;
+    /** Speculative decision of each vilain (see Decider.decide) */
+    private int[] specMove;
+    /** Tile columns whose occupancy was read by each vilain's speculative decision */
+    private int[] specMask;
+    /** For each tile row, bit mask of the columns whose occupancy changed since the decision phase */
+    private final int[] dirtyColumns = new int[LodeRunnerStage.STAGE_HEIGHT];
+    /** Set during a heartBeat using speculative decisions */
+    private boolean isSpeculating = false;
+    /** Number of speculative decisions committed as is (statistics) */
+    public int speculationHits = 0;
+    /** Number of speculative decisions computed (statistics) */
+    public int speculations = 0;
+    /** Threads helping the updating thread during decision phases */
+    private DecisionWorker[] workers = new DecisionWorker[0];
+    /**
+     * Lock and counters synchronizing decision phases with workers: the last phase and the workers
+     * generation it was started for, the workers yet to serve it, and the current workers generation
+     */
+    private final Object phaseLock = new Object();
+    private int phase = 0;
+    private int phaseGeneration = 0;
+    private int pendingWorkers = 0;
+    private int generation = 0;
+
+    LodeRunnerVilainEngine(LodeRunnerStage stage) {
+        this.stage = stage;
+    }
+
+    /** Copy the states of the stage's vilain objects into this engine. Arrays are only allocated the first time. */
+    public void load() {
+        count = stage.vilains.size();
+        if (xTile != null && xTile.length == count) {
+            loadStates();
+            return;
+        }
+        xTile = new int[count];
+        yTile = new int[count];
+        xAdjust = new int[count];
+        yAdjust = new int[count];
+        xDelta = new int[count];
+        yDelta = new int[count];
+        delayBusy = new int[count];
+        move = new int[count];
+        nextMove = new int[count];
+        flags = new int[count];
+        chests = new int[count];
+        specInitial = new int[count];
+        specMove = new int[count];
+        specMask = new int[count];
+        loadStates();
+    }
+
+    /** Copy the states of the stage's vilain objects into the arrays, and rebuild the occupancy grid */
+    private void loadStates() {
+        for (int t = 0; t < living.length; t++) {
+            living[t] = present[t] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            LodeRunnerVilain vilain = (LodeRunnerVilain) stage.vilains.elementAt(i);
+            xTile[i] = vilain.xTile;
+            yTile[i] = vilain.yTile;
+            xAdjust[i] = vilain.xAdjust;
+            yAdjust[i] = vilain.yAdjust;
+            xDelta[i] = vilain.xDelta;
+            yDelta[i] = vilain.yDelta;
+            delayBusy[i] = vilain.delayBusy;
+            move[i] = vilain.currentMove;
+            nextMove[i] = vilain.nextMove;
+            flags[i] = (vilain.lookLeft ? FLAG_LOOK_LEFT : 0) | (vilain.isTrapped() ? FLAG_TRAPPED : 0);
+            chests[i] = vilain.nChests;
+            enter(i);
+        }
+        speculationHits = speculations = 0;
+    }
+
+    /** Copy the states of this engine back into the stage's vilain objects */
+    public void store() {
+        for (int i = 0; i < count; i++) {
+            LodeRunnerVilain vilain = (LodeRunnerVilain) stage.vilains.elementAt(i);
+            vilain.xTile = xTile[i];
+            vilain.yTile = yTile[i];
+            vilain.xAdjust = xAdjust[i];
+            vilain.yAdjust = yAdjust[i];
+            vilain.xDelta = xDelta[i];
+            vilain.yDelta = yDelta[i];
+            vilain.delayBusy = delayBusy[i];
+            vilain.currentMove = move[i];
+            vilain.nextMove = nextMove[i];
+            vilain.lookLeft = (flags[i] & FLAG_LOOK_LEFT) != 0;
+            vilain.setTrapped((flags[i] & FLAG_TRAPPED) != 0);
+            vilain.nChests = chests[i];
+        }
+    }
+
+    /** Check if the given tile is occupied by a vilain */
+    public boolean isVilainAt(int x, int y, boolean includeRespawning) {
+        if (x < 0 || x >= LodeRunnerStage.STAGE_WIDTH || y < 0 || y >= LodeRunnerStage.STAGE_HEIGHT) {
+            return false;
+        }
+        int t = LodeRunnerStage.getTileIndex(x, y);
+        return (includeRespawning ? present[t] : living[t]) > 0;
+    }
+
+    /** Register vilain i in the occupancy grid */
+    private void enter(int i) {
+        int t = LodeRunnerStage.getTileIndex(xTile[i], yTile[i]);
+        present[t]++;
+        if (move[i] != LodeRunnerVilain.MOVE_RESPAWN) {
+            living[t]++;
+            if (isSpeculating) {
+                dirtyColumns[yTile[i]] |= 1 << xTile[i];
+            }
+        }
+    }
+
+    /** Unregister vilain i from the occupancy grid */
+    private void leave(int i) {
+        int t = LodeRunnerStage.getTileIndex(xTile[i], yTile[i]);
+        present[t]--;
+        if (move[i] != LodeRunnerVilain.MOVE_RESPAWN) {
+            living[t]--;
+            if (isSpeculating) {
+                dirtyColumns[yTile[i]] |= 1 << xTile[i];
+            }
+        }
+    }
+
+    /** Heartbeat for every vilain, within the AI decisions budget of the stage's scheduler, then update the vilain objects */
+    public void heartBeat() {
+        LodeRunnerVilainScheduler scheduler = stage.vilainScheduler;
+        boolean[] postponed = scheduler.getPostponed(count);
+        for (int i = 0; i < count; i++) {
+            postponed[i] = needsDecision(i);
+        }
+        scheduler.grantDecisions(count);
+        // Decision phase (only with several threads)
+        isSpeculating = workers.length > 0 && prepareSpeculation(postponed) > 1;
+        if (isSpeculating) {
+            for (int y = 0; y < LodeRunnerStage.STAGE_HEIGHT; y++) {
+                dirtyColumns[y] = 0;
+            }
+            speculate();
+        }
+        // Batch update, in stage order
+        for (int i = 0; i < count; i++) {
+            if (!postponed[i]) {
+                heartBeat(i);
+            }
+        }
+        isSpeculating = false;
+        store();
+    }
+
+    /** Check if vilain i will make an AI decision at this heartBeat, if granted (see LodeRunnerVilain.needsDecision) */
+    private boolean needsDecision(int i) {
+        return delayBusy[i] == 0 && xAdjust[i] == 0 && yAdjust[i] == 0
+                && stage.getTileBehavior(xTile[i], yTile[i]) != LodeRunnerStage.TILE_BRICK;
+    }
+
+    /** Set the initial move of the speculative decision of every vilain granted a decision. Returns their number. */
+    private int prepareSpeculation(boolean[] postponed) {
+        int granted = 0;
+        for (int i = 0; i < count; i++) {
+            specInitial[i] = SPEC_NONE;
+            if (!postponed[i] && needsDecision(i)) {
+                // A vilain climbing out of a hole decides as if it had no move requested
+                specInitial[i] = (flags[i] & FLAG_TRAPPED) != 0 && move[i] == LodeRunnerVilain.MOVE_CLIMB_HOLE
+                        ? LodeRunnerCharacter.MOVE_NONE : nextMove[i];
+                granted++;
+            }
+        }
+        speculations += granted;
+        return granted;
+    }
+
+    /** Thread computing a share of the speculative decisions at each decision phase */
+    private class DecisionWorker extends Thread {
+
+        /** Share of the vilains decided by this worker, among a given number of shares */
+        private final int share, shares;
+        /** Workers generation this worker belongs to (see dispose) */
+        private final int workerGeneration;
+        /** AI used by this worker */
+        private final Decider workerDecider = new Decider();
+        /** Last decision phase served by this worker */
+        private int servedPhase;
+
+        DecisionWorker(int share, int shares) {
+            this.share = share;
+            this.shares = shares;
+            workerGeneration = generation;
+            servedPhase = phase;
+        }
+
+        /**
+         * Serve every decision phase until this engine's workers are disposed. A phase started for this
+         * worker's generation is served even if the workers were disposed meanwhile, so that it is always
+         * counted down and the updating thread never waits forever.
+         */
+        public void run() {
+            while (true) {
+                synchronized (phaseLock) {
+                    while (phase == servedPhase && workerGeneration == generation) {
+                        try {
+                            phaseLock.wait();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                    if (phase == servedPhase || phaseGeneration != workerGeneration) {
+                        return;
+                    }
+                    servedPhase = phase;
+                }
+                workerDecider.speculate(share, shares);
+                synchronized (phaseLock) {
+                    if (--pendingWorkers == 0) {
+                        phaseLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a decision phase, sharing the vilains between the updating thread and the workers.
+     * If the workers were disposed meanwhile, the updating thread makes every decision.
+     */
+    private void speculate() {
+        DecisionWorker[] phaseWorkers = workers;
+        int shares = 1;
+        synchronized (phaseLock) {
+            if (phaseWorkers.length > 0 && phaseWorkers[0].workerGeneration == generation) {
+                shares += phaseWorkers.length;
+                pendingWorkers = phaseWorkers.length;
+                phaseGeneration = generation;
+                phase++;
+                phaseLock.notifyAll();
+            }
+        }
+        decider.speculate(0, shares);
+        synchronized (phaseLock) {
+            while (pendingWorkers > 0) {
+                try {
+                    phaseLock.wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the number of threads computing the AI decisions (1 for serial decisions, the default).
+     * Only worth it with several processors, and a decisions budget large enough to keep them busy
+     * (see LodeRunnerVilainScheduler.decisionsPerHeartBeat).
+     */
+    public void setDecisionThreads(int threads) {
+        dispose();
+        DecisionWorker[] newWorkers = new DecisionWorker[Math.max(threads, 1) - 1];
+        synchronized (phaseLock) {
+            for (int w = 0; w < newWorkers.length; w++) {
+                newWorkers[w] = new DecisionWorker(w + 1, newWorkers.length + 1);
+            }
+        }
+        for (int w = 0; w < newWorkers.length; w++) {
+            newWorkers[w].start();
+        }
+        workers = newWorkers;
+    }
+
+    /** Stop the decision threads, if any, once they have served the decision phase in progress */
+    public void dispose() {
+        synchronized (phaseLock) {
+            generation++;
+            phaseLock.notifyAll();
+        }
+        workers = new DecisionWorker[0];
+    }
+
+    /** Heartbeat for vilain i (see LodeRunnerVilain.heartBeat) */
+    private void heartBeat(int i) {
+        // Special animation before escaping a hole
+        if ((flags[i] & FLAG_TRAPPED) != 0 && move[i] == LodeRunnerCharacter.MOVE_NONE && delayBusy[i] <= LodeRunnerVilain.DELAY_RESPAWN) {
+            setLookLeft(i, delayBusy[i] / 2 % 2 == 0);
+        }
+        // If this vilain is inside plain brick, he should die
+        if (stage.getTileBehavior(xTile[i], yTile[i]) == LodeRunnerStage.TILE_BRICK) {
+            kill(i);
+            return;
+        }
+        // Decrease (if any) the number of heartBeats before this vilain can move again
+        if (delayBusy[i] > 0) {
+            delayBusy[i]--;
+            return;
+        }
+        // If the current move has ended, execute the next move
+        if (xAdjust[i] == 0 && yAdjust[i] == 0) {
+            makeNextMove(i);
+        }
+        computeNewPosition(i);
+    }
+
+    private void setLookLeft(int i, boolean lookLeft) {
+        if (lookLeft) {
+            flags[i] |= FLAG_LOOK_LEFT;
+        } else {
+            flags[i] &= ~FLAG_LOOK_LEFT;
+        }
+    }
+
+    /** Kill vilain i (see LodeRunnerVilain.kill) */
+    private void kill(int i) {
+        stage.vilainsKilled++;
+        int tileIndex = stage.computeRandomRespawnPoint();
+        leave(i);
+        xTile[i] = tileIndex % LodeRunnerStage.STAGE_WIDTH;
+        yTile[i] = tileIndex / LodeRunnerStage.STAGE_WIDTH;
+        xAdjust[i] = yAdjust[i] = 0;
+        xDelta[i] = yDelta[i] = 0;
+        nextMove[i] = LodeRunnerCharacter.MOVE_NONE;
+        flags[i] = FLAG_LOOK_LEFT;
+        move[i] = LodeRunnerVilain.MOVE_RESPAWN;
+        delayBusy[i] = LodeRunnerVilain.DELAY_RESPAWN;
+        enter(i);
+    }
+
+    /** Set the given move as current for vilain i (see LodeRunnerVilain.setCurrentMove) */
+    private void setCurrentMove(int i, int newMove) {
+        if ((move[i] == LodeRunnerVilain.MOVE_RESPAWN) != (newMove == LodeRunnerVilain.MOVE_RESPAWN)) {
+            leave(i);
+            move[i] = newMove;
+            enter(i);
+        } else {
+            move[i] = newMove;
+        }
+        switch (newMove) {
+            case LodeRunnerCharacter.MOVE_NONE:
+                xDelta[i] = 0;
+                yDelta[i] = 0;
+                break;
+            case LodeRunnerCharacter.MOVE_RUN_LEFT:
+                flags[i] |= FLAG_LOOK_LEFT;
+                xDelta[i] = -1;
+                yDelta[i] = 0;
+                break;
+            case LodeRunnerCharacter.MOVE_RUN_RIGHT:
+                flags[i] &= ~FLAG_LOOK_LEFT;
+                xDelta[i] = 1;
+                yDelta[i] = 0;
+                break;
+            case LodeRunnerCharacter.MOVE_CLIMB_UP:
+            case LodeRunnerVilain.MOVE_CLIMB_HOLE:
+                xDelta[i] = 0;
+                yDelta[i] = -1;
+                break;
+            case LodeRunnerCharacter.MOVE_CLIMB_DOWN:
+            case LodeRunnerCharacter.MOVE_FALL_DOWN:
+                xDelta[i] = 0;
+                yDelta[i] = 1;
+                break;
+        }
+    }
+
+    /** Check if a tile behavior lets a character run or climb into it */
+    private static boolean isPassable(int type) {
+        return type != LodeRunnerStage.TILE_BRICK && type != LodeRunnerStage.TILE_TRAP && type != LodeRunnerStage.TILE_CONCRETE;
+    }
+
+    /**
+     * Vilains' AI, reading the engine arrays without modifying them.
+     * Each thread taking part in the decision phase owns its Decider.
+     */
+    private final class Decider {
+
+        /** Bit mask of the tile columns whose occupancy was read since last reset */
+        int readMask;
+
+        /** Check if the given tile is occupied by a living vilain, keeping track of the columns read */
+        private boolean isVilainAt(int x, int y) {
+            if (x < 0 || x >= LodeRunnerStage.STAGE_WIDTH || y < 0 || y >= LodeRunnerStage.STAGE_HEIGHT) {
+                return false;
+            }
+            readMask |= 1 << x;
+            return living[LodeRunnerStage.getTileIndex(x, y)] > 0;
+        }
+
+        /** Check if a vilain standing at a given tile can perform a given move (see LodeRunnerVilain.isPossibleMove) */
+        boolean isPossibleMove(int x, int y, int m) {
+            switch (m) {
+                case LodeRunnerCharacter.MOVE_RUN_LEFT:
+                    return isPassable(stage.getTileBehavior(x - 1, y)) && !isVilainAt(x - 1, y);
+                case LodeRunnerCharacter.MOVE_RUN_RIGHT:
+                    return isPassable(stage.getTileBehavior(x + 1, y)) && !isVilainAt(x + 1, y);
+                case LodeRunnerCharacter.MOVE_CLIMB_UP:
+                    return stage.getTileBehavior(x, y) == LodeRunnerStage.TILE_LADDER
+                            && isPassable(stage.getTileBehavior(x, y - 1)) && !isVilainAt(x, y - 1);
+                case LodeRunnerVilain.MOVE_CLIMB_HOLE:
+                    return isPassable(stage.getTileBehavior(x, y - 1)) && !isVilainAt(x, y - 1);
+                case LodeRunnerCharacter.MOVE_CLIMB_DOWN: {
+                    int nextType = stage.getTileBehavior(x, y + 1);
+                    return nextType != LodeRunnerStage.TILE_BRICK && nextType != LodeRunnerStage.TILE_CONCRETE
+                            && stage.getTile(x, y + 1) != LodeRunnerStage.TILE_HOLE_EMPTY && !isVilainAt(x, y + 1);
+                }
+                default:
+                    return false;
+            }
+        }
+
+        /** Get the move actually resulting from trying a given move at a given tile (see LodeRunnerVilain.tryNextMove) */
+        int tryMove(int x, int y, int m) {
+            if (!isPossibleMove(x, y, m)) {
+                return LodeRunnerCharacter.MOVE_NONE;
+            }
+            if (m == LodeRunnerCharacter.MOVE_CLIMB_DOWN && stage.getTileBehavior(x, y + 1) != LodeRunnerStage.TILE_LADDER) {
+                return LodeRunnerCharacter.MOVE_FALL_DOWN;
+            }
+            return m;
+        }
+
+        /** Find the best move to reach a vertical access towards the hero (see LodeRunnerVilain.findAccess) */
+        private int findAccess(int x, int y, int m) {
+            int xLeft = 0, xRight = 0;
+            for (int gx = x; isPossibleMove(gx, y, LodeRunnerCharacter.MOVE_RUN_LEFT);) {
+                gx--;
+                if (isPossibleMove(gx, y, m)) {
+                    xLeft = x - gx;
+                    break;
+                }
+            }
+            for (int gx = x; isPossibleMove(gx, y, LodeRunnerCharacter.MOVE_RUN_RIGHT);) {
+                gx++;
+                if (isPossibleMove(gx, y, m)) {
+                    xRight = gx - x;
+                    break;
+                }
+            }
+            if (xLeft == 0 && xRight == 0) {
+                return LodeRunnerCharacter.MOVE_NONE;
+            }
+            if (xRight == 0) {
+                return tryMove(x, y, LodeRunnerCharacter.MOVE_RUN_LEFT);
+            }
+            if (xLeft == 0) {
+                return tryMove(x, y, LodeRunnerCharacter.MOVE_RUN_RIGHT);
+            }
+            int xHero = stage.hero.xTile;
+            xLeft += Math.abs(x - xLeft - xHero);
+            xRight += Math.abs(x + xRight - xHero);
+            if (xLeft < xRight) {
+                return tryMove(x, y, LodeRunnerCharacter.MOVE_RUN_LEFT);
+            }
+            if (xLeft > xRight) {
+                return tryMove(x, y, LodeRunnerCharacter.MOVE_RUN_RIGHT);
+            }
+            return LodeRunnerCharacter.MOVE_NONE;
+        }
+
+        /**
+         * Compute the next AI move of vilain i (see LodeRunnerVilain.computeNextMove).
+         * Returns DECISION_RANDOM when the random fallback move should be drawn.
+         */
+        int decide(int i, int initialMove) {
+            int x = xTile[i], y = yTile[i];
+            LodeRunnerHero hero = stage.hero;
+            int m;
+            if (initialMove != LodeRunnerVilain.MOVE_CLIMB_HOLE && hero != null) {
+                int yHero = hero.yTile;
+                if (hero.xTile != x) {
+                    if (hero.yDelta > 0) {
+                        yHero += 2;
+                    } else if (hero.yDelta < 0) {
+                        yHero -= 2;
+                    }
+                }
+                int pathMove = stage.pathfinder.getMoveTowardsHero(x, y);
+                if (pathMove != LodeRunnerCharacter.MOVE_NONE && (m = tryMove(x, y, pathMove)) != LodeRunnerCharacter.MOVE_NONE) {
+                    return m;
+                }
+                if (yHero < y && (m = tryMove(x, y, LodeRunnerCharacter.MOVE_CLIMB_UP)) != LodeRunnerCharacter.MOVE_NONE) {
+                    return m;
+                }
+                if (yHero > y && (m = tryMove(x, y, LodeRunnerCharacter.MOVE_CLIMB_DOWN)) != LodeRunnerCharacter.MOVE_NONE) {
+                    return m;
+                }
+                if (yHero < y && (m = findAccess(x, y, LodeRunnerCharacter.MOVE_CLIMB_UP)) != LodeRunnerCharacter.MOVE_NONE) {
+                    return m;
+                }
+                if (yHero > y && (m = findAccess(x, y, LodeRunnerCharacter.MOVE_CLIMB_DOWN)) != LodeRunnerCharacter.MOVE_NONE) {
+                    return m;
+                }
+                if (yHero == y || initialMove == LodeRunnerCharacter.MOVE_NONE) {
+                    if (hero.xTile < x && (m = tryMove(x, y, LodeRunnerCharacter.MOVE_RUN_LEFT)) != LodeRunnerCharacter.MOVE_NONE) {
+                        return m;
+                    }
+                    if (hero.xTile > x && (m = tryMove(x, y, LodeRunnerCharacter.MOVE_RUN_RIGHT)) != LodeRunnerCharacter.MOVE_NONE) {
+                        return m;
+                    }
+                    if ((m = tryMove(x, y, hero.lookLeft ? LodeRunnerCharacter.MOVE_RUN_LEFT : LodeRunnerCharacter.MOVE_RUN_RIGHT)) != LodeRunnerCharacter.MOVE_NONE) {
+                        return m;
+                    }
+                }
+            }
+            if ((m = tryMove(x, y, initialMove)) != LodeRunnerCharacter.MOVE_NONE) {
+                return m;
+            }
+            return DECISION_RANDOM;
+        }
+
+        /** Speculatively decide for every vilain of a given share (vilain indices equal to share modulo shares) */
+        void speculate(int share, int shares) {
+            for (int i = share; i < count; i += shares) {
+                if (specInitial[i] != SPEC_NONE) {
+                    readMask = 0;
+                    specMove[i] = decide(i, specInitial[i]);
+                    specMask[i] = readMask;
+                }
+            }
+        }
+    }
+
+    /** Compute the next AI move for vilain i (see LodeRunnerVilain.computeNextMove) */
+    private void computeNextMove(int i) {
+        int initialMove = nextMove[i];
+        int m;
+        if (isSpeculationValid(i, initialMove)) {
+            m = specMove[i];
+            speculationHits++;
+        } else {
+            m = decider.decide(i, initialMove);
+        }
+        // Try a random move (prevent vilains from being stuck)
+        if (m == DECISION_RANDOM) {
+            switch (stage.random.nextInt(4)) {
+                case 0:
+                    m = decider.tryMove(xTile[i], yTile[i], LodeRunnerCharacter.MOVE_CLIMB_UP);
+                    break;
+                case 1:
+                    m = decider.tryMove(xTile[i], yTile[i], LodeRunnerCharacter.MOVE_CLIMB_DOWN);
+                    break;
+                case 2:
+                    m = decider.tryMove(xTile[i], yTile[i], LodeRunnerCharacter.MOVE_RUN_LEFT);
+                    break;
+                default:
+                    m = decider.tryMove(xTile[i], yTile[i], LodeRunnerCharacter.MOVE_RUN_RIGHT);
+                    break;
+            }
+        }
+        nextMove[i] = m;
+    }
+
+    /**
+     * Check if the speculative decision of vilain i still holds: it was computed for the same initial move,
+     * and no tile whose occupancy it read has changed since the decision phase.
+     * (Tiles and hero are not modified by vilains in a way that changes decisions.)
+     */
+    private boolean isSpeculationValid(int i, int initialMove) {
+        if (!isSpeculating || specInitial[i] == SPEC_NONE || specInitial[i] != initialMove) {
+            return false;
+        }
+        int y = yTile[i];
+        int dirty = dirtyColumns[y];
+        if (y > 0) {
+            dirty |= dirtyColumns[y - 1];
+        }
+        if (y + 1 < LodeRunnerStage.STAGE_HEIGHT) {
+            dirty |= dirtyColumns[y + 1];
+        }
+        return (dirty & specMask[i]) == 0;
+    }
+
+    /** Check if vilain i should fall (see LodeRunnerVilain.shouldFall) */
+    private boolean shouldFall(int i) {
+        int x = xTile[i], y = yTile[i];
+        int currentType = stage.getTileBehavior(x, y);
+        if (currentType == LodeRunnerStage.TILE_BRICK || currentType == LodeRunnerStage.TILE_LADDER || currentType == LodeRunnerStage.TILE_ROPE) {
+            return false;
+        }
+        int bottomType = stage.getTileBehavior(x, y + 1);
+        if (bottomType == LodeRunnerStage.TILE_BRICK || bottomType == LodeRunnerStage.TILE_CONCRETE || bottomType == LodeRunnerStage.TILE_LADDER) {
+            return false;
+        }
+        return (flags[i] & FLAG_TRAPPED) == 0
+                && !(isVilainAt(x, y + 1, false) && stage.getTile(x, y + 1) == LodeRunnerStage.TILE_HOLE_EMPTY);
+    }
+
+    /** Execute the next move of vilain i, ignoring traps (see LodeRunnerCharacter.makeNextMove) */
+    private void makeNextCharacterMove(int i) {
+        boolean shouldFall = shouldFall(i);
+        // Attempt to take a chest if not just falling (a vilain can hold only one chest)
+        if ((move[i] == LodeRunnerCharacter.MOVE_FALL_DOWN || !shouldFall) && chests[i] == 0
+                && stage.getTile(xTile[i], yTile[i]) == LodeRunnerStage.TILE_CHEST) {
+            chests[i]++;
+            stage.setTile(xTile[i], yTile[i], LodeRunnerStage.TILE_VOID);
+        }
+        if (shouldFall) {
+            nextMove[i] = LodeRunnerCharacter.MOVE_FALL_DOWN;
+        } else {
+            computeNextMove(i);
+        }
+        setCurrentMove(i, nextMove[i]);
+        if (nextMove[i] == LodeRunnerCharacter.MOVE_FALL_DOWN) {
+            nextMove[i] = LodeRunnerCharacter.MOVE_NONE;
+        }
+    }
+
+    /** Execute the next move of vilain i (see LodeRunnerVilain.makeNextMove) */
+    private void makeNextMove(int i) {
+        if ((flags[i] & FLAG_TRAPPED) != 0) {
+            if (move[i] == LodeRunnerCharacter.MOVE_FALL_DOWN) {
+                delayBusy[i] = LodeRunnerVilain.DELAY_TRAPPED_HOLE;
+                setCurrentMove(i, LodeRunnerCharacter.MOVE_NONE);
+                nextMove[i] = LodeRunnerVilain.MOVE_CLIMB_HOLE;
+            } else if (nextMove[i] == LodeRunnerVilain.MOVE_CLIMB_HOLE) {
+                if (decider.isPossibleMove(xTile[i], yTile[i], LodeRunnerVilain.MOVE_CLIMB_HOLE)) {
+                    setCurrentMove(i, LodeRunnerVilain.MOVE_CLIMB_HOLE);
+                    nextMove[i] = LodeRunnerCharacter.MOVE_NONE;
+                } else {
+                    delayBusy[i] = LodeRunnerVilain.DELAY_RETRY_LATER;
+                    setCurrentMove(i, LodeRunnerCharacter.MOVE_NONE);
+                    nextMove[i] = LodeRunnerVilain.MOVE_CLIMB_HOLE;
+                }
+            } else if (move[i] == LodeRunnerVilain.MOVE_CLIMB_HOLE) {
+                nextMove[i] = LodeRunnerCharacter.MOVE_NONE;
+                makeNextCharacterMove(i);
+                flags[i] &= ~FLAG_TRAPPED;
+            }
+        } else if (move[i] == LodeRunnerVilain.MOVE_RESPAWN && isVilainAt(xTile[i], yTile[i], false)) {
+            delayBusy[i] = LodeRunnerVilain.DELAY_RETRY_LATER;
+        } else {
+            makeNextCharacterMove(i);
+        }
+        if ((flags[i] & FLAG_TRAPPED) == 0) {
+            int x = xTile[i], y = yTile[i];
+            // Check if he should fall in a trap
+            if (move[i] == LodeRunnerCharacter.MOVE_FALL_DOWN && stage.getTile(x, y + 1) == LodeRunnerStage.TILE_HOLE_EMPTY) {
+                flags[i] |= FLAG_TRAPPED;
+                nextMove[i] = LodeRunnerCharacter.MOVE_NONE;
+            }
+            // Drop this vilain's chest, if appropriate (see LodeRunnerVilain.dropChest)
+            boolean canDrop = chests[i] > 0 && stage.getTile(x, y) == LodeRunnerStage.TILE_VOID;
+            if (canDrop && (flags[i] & FLAG_TRAPPED) == 0) {
+                canDrop = move[i] != LodeRunnerCharacter.MOVE_FALL_DOWN && stage.random.nextBoolean(6);
+                if (canDrop) {
+                    int bottomType = stage.getTileBehavior(x, y + 1);
+                    canDrop = bottomType == LodeRunnerStage.TILE_BRICK || bottomType == LodeRunnerStage.TILE_CONCRETE || bottomType == LodeRunnerStage.TILE_LADDER;
+                }
+            }
+            if (canDrop) {
+                chests[i]--;
+                stage.setTile(x, y, LodeRunnerStage.TILE_CHEST);
+            }
+        }
+    }
+
+    /** Compute the next position of vilain i (see LodeRunnerVilain.computeNewPosition) */
+    private void computeNewPosition(int i) {
+        int xNewTile = xTile[i], yNewTile = yTile[i];
+        int xNewAdjust = xAdjust[i] + xDelta[i], yNewAdjust = yAdjust[i] + yDelta[i];
+        if (xNewAdjust < -3) {
+            xNewAdjust += 6;
+            xNewTile--;
+        } else if (xNewAdjust > 3) {
+            xNewAdjust -= 6;
+            xNewTile++;
+        }
+        if (yNewAdjust < -2) {
+            yNewAdjust += 5;
+            yNewTile--;
+        } else if (yNewAdjust > 2) {
+            yNewAdjust -= 5;
+            yNewTile++;
+        }
+        if (xNewTile == xTile[i] && yNewTile == yTile[i]) {
+            xAdjust[i] = xNewAdjust;
+            yAdjust[i] = yNewAdjust;
+        } else if (!isVilainAt(xNewTile, yNewTile, false)) {
+            leave(i);
+            xTile[i] = xNewTile;
+            yTile[i] = yNewTile;
+            xAdjust[i] = xNewAdjust;
+            yAdjust[i] = yNewAdjust;
+            enter(i);
+        } else {
+            // Don't stay stuck, but rather try going backwards on occasion
+            int reverseMove;
+            switch (move[i]) {
+                case LodeRunnerCharacter.MOVE_RUN_LEFT:
+                    reverseMove = LodeRunnerCharacter.MOVE_RUN_RIGHT;
+                    break;
+                case LodeRunnerCharacter.MOVE_RUN_RIGHT:
+                    reverseMove = LodeRunnerCharacter.MOVE_RUN_LEFT;
+                    break;
+                case LodeRunnerCharacter.MOVE_CLIMB_UP:
+                    reverseMove = LodeRunnerCharacter.MOVE_CLIMB_DOWN;
+                    break;
+                case LodeRunnerCharacter.MOVE_CLIMB_DOWN:
+                    reverseMove = LodeRunnerCharacter.MOVE_CLIMB_UP;
+                    break;
+                default:
+                    reverseMove = LodeRunnerCharacter.MOVE_NONE;
+            }
+            if (reverseMove != LodeRunnerCharacter.MOVE_NONE && stage.random.nextBoolean(3)) {
+                setCurrentMove(i, reverseMove);
+            }
+        }
+    }
+}
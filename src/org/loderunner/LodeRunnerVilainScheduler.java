@@ -0,0 +1,114 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.io.*;
+
+/**
+ * Sequences the heartBeats of a stage's vilains.
+ * - positions are updated for every vilain at every heartBeat
+ * - AI decisions (makeNextMove) are limited to a fixed budget per heartBeat,
+ *   granted round-robin so that no vilain starves
+ * A vilain waiting for a decision simply holds its position until granted.
+ * The budget and its cursor are shared with the array based engine (see grantDecisions).
+ */
+class LodeRunnerVilainScheduler {
+
+    /** Maximum number of AI decisions per heartBeat */
+    public static final int DECISIONS_PER_HEARTBEAT = 8;
+    /** Maximum number of AI decisions per heartBeat for this stage (may be raised for batch simulations) */
+    public int decisionsPerHeartBeat = DECISIONS_PER_HEARTBEAT;
+    /** Lode Runner stage whose vilains are sequenced */
+    private LodeRunnerStage stage;
+    /** Vilains whose decision is postponed at the current heartBeat, indexed like stage.vilains */
+    private boolean[] postponed = new boolean[0];
+    /** Index of the first vilain to be considered for a decision at next heartBeat */
+    private int cursor = 0;
+    /** Number of decisions postponed since the stage was loaded (statistics) */
+    public int postponedDecisions = 0;
+
+    LodeRunnerVilainScheduler(LodeRunnerStage stage) {
+        this.stage = stage;
+    }
+
+    /** Reset the scheduler for a newly loaded stage */
+    public void reset() {
+        cursor = 0;
+        postponedDecisions = 0;
+    }
+
+    /** Index of the first vilain to be considered for a decision at next heartBeat */
+    public int getCursor() {
+        return cursor;
+    }
+
+    /** Restore the index returned by getCursor (see LodeRunnerRewind) */
+    public void setCursor(int cursor) {
+        this.cursor = cursor;
+    }
+
+    /** Write the state of this scheduler (see LodeRunnerStage.serialize) */
+    public void serialize(DataOutput output) throws IOException {
+        output.writeShort(cursor);
+    }
+
+    /** Read the state of this scheduler written by serialize, once the stage's vilains are restored */
+    public void deserialize(DataInput input) throws IOException {
+        cursor = input.readUnsignedShort();
+        if (cursor > 0 && cursor >= stage.vilains.size()) {
+            throw new IOException("Corrupted stage state: bad scheduler");
+        }
+    }
+
+    /**
+     * Flags of the vilains whose decision is postponed, for n vilains (see grantDecisions).
+     * The array is only reallocated when it is too small.
+     */
+    public boolean[] getPostponed(int n) {
+        if (postponed.length < n) {
+            postponed = new boolean[n];
+        }
+        return postponed;
+    }
+
+    /**
+     * Grant the AI decisions of a heartBeat round-robin, starting at the cursor. On entry, the flags returned by
+     * getPostponed are set for the n vilains needing a decision; on return, only for those whose decision is postponed.
+     */
+    public void grantDecisions(int n) {
+        int granted = 0, start = cursor;
+        for (int k = 0; k < n; k++) {
+            int i = (start + k) % n;
+            if (postponed[i]) {
+                if (granted < decisionsPerHeartBeat) {
+                    postponed[i] = false;
+                    granted++;
+                    if (granted == decisionsPerHeartBeat) {
+                        cursor = (i + 1) % n;
+                    }
+                } else {
+                    postponedDecisions++;
+                }
+            }
+        }
+    }
+
+    /** Heartbeat for every vilain of the stage */
+    public void heartBeat() {
+        int n = stage.vilains.size();
+        if (n == 0) {
+            return;
+        }
+        boolean[] postponed = getPostponed(n);
+        for (int i = 0; i < n; i++) {
+            postponed[i] = ((LodeRunnerVilain) stage.vilains.elementAt(i)).needsDecision();
+        }
+        grantDecisions(n);
+        // Update vilains in stage order (so that collisions resolve as usual)
+        for (int i = 0; i < n; i++) {
+            if (!postponed[i]) {
+                ((LodeRunnerVilain) stage.vilains.elementAt(i)).heartBeat();
+            }
+        }
+    }
+}
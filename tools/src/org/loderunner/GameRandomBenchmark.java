@@ -0,0 +1,46 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.util.Random;
+
+/**
+ * Desktop microbenchmark of GameRandom against the standard Random class,
+ * drawing numbers the way the stage does (nextInt(n) and nextBoolean(n) with small n).
+ *
+ * Usage: GameRandomBenchmark [draws per round]
+ */
+class GameRandomBenchmark {
+
+    /** Number of measure rounds, the first ones warming the JIT up */
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int draws = args.length > 0 ? Integer.parseInt(args[0]) : 50000000;
+        Random standard = new Random(1);
+        GameRandom game = new GameRandom(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            // Sums are printed so that the draws can't be optimized away
+            long startTime = System.currentTimeMillis();
+            int standardSum = 0;
+            for (int i = 0; i < draws; i++) {
+                standardSum += standard.nextInt(4 + (i & 7));
+                if (standard.nextInt(6) == 0) {
+                    standardSum++;
+                }
+            }
+            long standardTime = Math.max(1, System.currentTimeMillis() - startTime);
+            startTime = System.currentTimeMillis();
+            int gameSum = 0;
+            for (int i = 0; i < draws; i++) {
+                gameSum += game.nextInt(4 + (i & 7));
+                if (game.nextBoolean(6)) {
+                    gameSum++;
+                }
+            }
+            long gameTime = Math.max(1, System.currentTimeMillis() - startTime);
+            System.out.println("round " + round + ": java.util.Random " + standardTime + " ms, GameRandom " + gameTime + " ms ("
+                    + (standardTime * 100 / gameTime) + "%) for " + 2L * draws + " draws [" + standardSum + "/" + gameSum + "]");
+        }
+    }
+}
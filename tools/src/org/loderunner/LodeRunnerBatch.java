@@ -0,0 +1,260 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Desktop batch runner of headless Lode Runner sessions, for regression sweeps and balancing.
+ * Every combination of level, seed and input script is a run, played on its own stage
+ * (see LodeRunnerStage.step) until the stage is over or the ticks limit is reached.
+ * Runs are shared by worker threads (one per processor by default) pulling the next run
+ * to play, and their results are streamed as CSV lines, in run order.
+ *
+ * Usage: LodeRunnerBatch [-levels first-last] [-seeds count] [-scripts file] [-ticks max]
+ *                        [-threads count] [-decisionThreads count] [-decisions count]
+ *                        [-difficulty 0-2] [-out file.csv] [-logs directory]
+ *
+ * The processors left by the worker threads compute the AI decisions of the vilain engine
+ * (see LodeRunnerVilainEngine.setDecisionThreads), unless -decisionThreads is given.
+ * With -decisions, the AI decisions budget per heartBeat is raised (or lowered) for every run
+ * (see LodeRunnerVilainScheduler.decisionsPerHeartBeat).
+ *
+ * With -logs, the replay log of every run is written as "run.lrr" in the given directory
+ * (see LodeRunnerReplayer).
+ *
+ * An input script is a line of characters, one per tick, played in a loop:
+ * '.' no input, 'L' 'R' 'U' 'D' run and climb moves, '<' '>' dig left or right, '*' dig ahead,
+ * and '?' a random input (drawn from the run's seed, on its own generator).
+ */
+class LodeRunnerBatch {
+
+    /** CSV header line */
+    public static final String CSV_HEADER = "run,level,seed,script,outcome,ticks,chests,stageChests,vilains,vilainsKilled,postponedDecisions,searchesCompleted,budgetExhausted";
+    /** Scripts played when no scripts file is given */
+    static final String[] DEFAULT_SCRIPTS = {".", "?", "LLLLLL*RRRRRR*", "UUUUURRRRRRDDDDDLLLLLL"};
+    /** Levels range, as level numbers starting at 1 */
+    private int firstLevel = 1, lastLevel = LodeRunnerStage.MAX_LEVELS;
+    /** Number of seeds per level and script */
+    private int seeds = 1;
+    /** Input scripts */
+    private String[] scripts = DEFAULT_SCRIPTS;
+    /** Maximum number of ticks per run */
+    private int maxTicks = 10000;
+    /** Number of worker threads */
+    private int threadsCount = Runtime.getRuntime().availableProcessors();
+    /** Number of threads computing the AI decisions of each run's vilain engine (0 to share the processors left) */
+    private int decisionThreads = 0;
+    /** AI decisions budget per heartBeat */
+    private int decisionsPerHeartBeat = LodeRunnerVilainScheduler.DECISIONS_PER_HEARTBEAT;
+    /** Vilains' AI difficulty */
+    private int difficulty = LodeRunnerPathfinder.DIFFICULTY_EASY;
+    /** Output of the CSV lines */
+    private Writer output;
+    /** Directory of the replay logs, null if not written */
+    private String logsDirectory = null;
+    /** Total number of runs */
+    private int runsCount;
+    /** Index of the next run to be played */
+    private int nextRun = 0;
+    /** Results of the runs played but not written yet (null if not played yet) */
+    private String[] results;
+    /** Index of the next run to be written */
+    private int nextResult = 0;
+    /** Total number of ticks played */
+    private long totalTicks = 0;
+    /** First error met by a worker, if any */
+    private Exception error = null;
+
+    /** Get the next run to be played, or -1 if none */
+    private synchronized int takeRun() {
+        if (nextRun == runsCount || error != null) {
+            return -1;
+        }
+        return nextRun++;
+    }
+
+    /** Record the result of a run, and write every result available in run order */
+    private synchronized void putResult(int run, String result, int ticks) throws IOException {
+        results[run] = result;
+        totalTicks += ticks;
+        while (nextResult < runsCount && results[nextResult] != null) {
+            output.write(results[nextResult]);
+            output.write('\n');
+            results[nextResult++] = null;
+        }
+    }
+
+    /** Convert a script character into a stage input */
+    static int getInput(char c, GameRandom random) {
+        switch (c) {
+            case 'L':
+                return LodeRunnerCharacter.MOVE_RUN_LEFT;
+            case 'R':
+                return LodeRunnerCharacter.MOVE_RUN_RIGHT;
+            case 'U':
+                return LodeRunnerCharacter.MOVE_CLIMB_UP;
+            case 'D':
+                return LodeRunnerCharacter.MOVE_CLIMB_DOWN;
+            case '<':
+                return LodeRunnerHero.MOVE_DIG_LEFT;
+            case '>':
+                return LodeRunnerHero.MOVE_DIG_RIGHT;
+            case '*':
+                return LodeRunnerStage.INPUT_DIG;
+            case '?':
+                return getInput("LRUD<>*.....".charAt(random.nextInt(12)), random);
+            default:
+                return LodeRunnerStage.INPUT_NONE;
+        }
+    }
+
+    /** Play a run on a new stage, and describe its result as a CSV line */
+    private String play(int run, int[] ticksPlayed) throws IOException {
+        int script = run % scripts.length;
+        int seed = run / scripts.length % seeds;
+        int level = firstLevel - 1 + run / scripts.length / seeds;
+        // Every run has its own stage and random generators
+        LodeRunnerStage stage = new LodeRunnerStage();
+        stage.pathfinder.setDifficulty(difficulty);
+        stage.vilainDecisionThreads = decisionThreads;
+        stage.vilainScheduler.decisionsPerHeartBeat = decisionsPerHeartBeat;
+        stage.loadFromResource(level, seed);
+        GameRandom scriptRandom = new GameRandom(~seed);
+        String inputs = scripts[script];
+        int ticks = 0;
+        while (ticks < maxTicks && !stage.endCompleted && !stage.endHeroDied) {
+            stage.step(inputs.length() == 0 ? LodeRunnerStage.INPUT_NONE : getInput(inputs.charAt(ticks % inputs.length()), scriptRandom));
+            ticks++;
+        }
+        ticksPlayed[0] = ticks;
+        if (logsDirectory != null) {
+            stage.recording.finish(stage.tick);
+            OutputStream log = new FileOutputStream(new File(logsDirectory, run + ".lrr"));
+            try {
+                log.write(stage.recording.toByteArray());
+            } finally {
+                log.close();
+            }
+        }
+        String outcome = stage.endCompleted ? "completed" : stage.endHeroDied ? "died" : "timeout";
+        String result = run + "," + (level + 1) + "," + seed + "," + script + "," + outcome + "," + ticks + ","
+                + (stage.hero == null ? 0 : stage.hero.nChests) + "," + stage.nChests + "," + stage.vilains.size() + "," + stage.vilainsKilled
+                + "," + stage.vilainScheduler.postponedDecisions + "," + stage.pathfinder.searchesCompleted + "," + stage.pathfinder.budgetExhausted;
+        // Stop the decision threads of the vilain engine, if any
+        stage.unload();
+        return result;
+    }
+
+    /** Worker thread, playing runs until there are none left */
+    private class Worker extends Thread {
+
+        public void run() {
+            int[] ticks = new int[1];
+            try {
+                for (int run = takeRun(); run >= 0; run = takeRun()) {
+                    putResult(run, play(run, ticks), ticks[0]);
+                }
+            } catch (Exception e) {
+                synchronized (LodeRunnerBatch.this) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Play every run, and write their results */
+    public void playAll() throws Exception {
+        runsCount = (lastLevel - firstLevel + 1) * seeds * scripts.length;
+        results = new String[runsCount];
+        output.write(CSV_HEADER);
+        output.write('\n');
+        long startTime = System.currentTimeMillis();
+        Worker[] workers = new Worker[threadsCount];
+        for (int i = 0; i < threadsCount; i++) {
+            workers[i] = new Worker();
+            workers[i].start();
+        }
+        for (int i = 0; i < threadsCount; i++) {
+            workers[i].join();
+        }
+        output.flush();
+        if (error != null) {
+            throw error;
+        }
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+        System.err.println(runsCount + " runs, " + totalTicks + " ticks in " + time + " ms on " + threadsCount + " threads: "
+                + runsCount * 1000 / time + " runs/s, " + totalTicks * 1000 / time + " ticks/s");
+    }
+
+    /** Read the input scripts from a file, one per line */
+    static String[] readScripts(String fileName) throws IOException {
+        Vector lines = new Vector();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.trim().length() > 0) {
+                    lines.addElement(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (lines.isEmpty()) {
+            throw new IOException("No input script in " + fileName);
+        }
+        String[] scripts = new String[lines.size()];
+        lines.copyInto(scripts);
+        return scripts;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LodeRunnerBatch batch = new LodeRunnerBatch();
+        String outputName = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i], value = args[i + 1];
+            if (option.equals("-levels")) {
+                int dash = value.indexOf('-');
+                batch.firstLevel = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+                batch.lastLevel = dash < 0 ? batch.firstLevel : Integer.parseInt(value.substring(dash + 1));
+            } else if (option.equals("-seeds")) {
+                batch.seeds = Integer.parseInt(value);
+            } else if (option.equals("-scripts")) {
+                batch.scripts = readScripts(value);
+            } else if (option.equals("-ticks")) {
+                batch.maxTicks = Integer.parseInt(value);
+            } else if (option.equals("-threads")) {
+                batch.threadsCount = Integer.parseInt(value);
+            } else if (option.equals("-decisionThreads")) {
+                batch.decisionThreads = Integer.parseInt(value);
+            } else if (option.equals("-decisions")) {
+                batch.decisionsPerHeartBeat = Integer.parseInt(value);
+            } else if (option.equals("-difficulty")) {
+                batch.difficulty = Integer.parseInt(value);
+            } else if (option.equals("-out")) {
+                outputName = value;
+            } else if (option.equals("-logs")) {
+                batch.logsDirectory = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (batch.firstLevel < 1 || batch.lastLevel > LodeRunnerStage.MAX_LEVELS || batch.firstLevel > batch.lastLevel
+                || batch.seeds < 1 || batch.threadsCount < 1 || batch.decisionThreads < 0 || batch.decisionsPerHeartBeat < 1
+                || batch.difficulty < 0 || batch.difficulty >= LodeRunnerPathfinder.DIFFICULTIES) {
+            throw new IllegalArgumentException("Invalid options");
+        }
+        if (batch.decisionThreads == 0) {
+            batch.decisionThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / batch.threadsCount);
+        }
+        batch.output = new BufferedWriter(outputName == null ? new OutputStreamWriter(System.out) : new FileWriter(outputName));
+        try {
+            batch.playAll();
+        } finally {
+            batch.output.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.io.*;
+
+/**
+ * Desktop benchmark of the parallel decision phase of the vilain engine (see LodeRunnerVilainEngine.setDecisionThreads).
+ * Levels are crowded with added monks, on free tiles drawn from the level's seed, and every vilain is granted
+ * its AI decision at every heartBeat. Each level is then updated on two stages, serially and with the given
+ * number of decision threads: the states of both stages (see LodeRunnerStage.serialize) must be identical
+ * after every heartBeat. The time per heartBeat, speedup and rate of speculative decisions committed as is are
+ * reported per crowd size, and the tool exits with status 1 if any heartBeat differs.
+ *
+ * Usage: LodeRunnerDecisionBenchmark [-threads count] [-heartBeats count] [-levelsStep step]
+ */
+class LodeRunnerDecisionBenchmark {
+
+    /** Numbers of monks added to every level */
+    private static final int[] CROWDS = {50, 100, 200, 300, 400, 500};
+    /** Number of decision threads of the parallel stage */
+    private int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /** Number of heartBeats per level */
+    private int heartBeats = 200;
+    /** Step between the levels measured */
+    private int levelsStep = 15;
+
+    /** Load a level, crowd it with monks, and set its vilain engine up with a given number of decision threads */
+    private static LodeRunnerStage load(int level, int monks, int threads) throws IOException {
+        LodeRunnerStage stage = new LodeRunnerStage();
+        stage.loadFromResource(level, level);
+        GameRandom random = new GameRandom(level);
+        for (int tries = 0; stage.vilains.size() < monks && tries < 100000; tries++) {
+            int x = random.nextInt(LodeRunnerStage.STAGE_WIDTH), y = random.nextInt(LodeRunnerStage.STAGE_HEIGHT);
+            if (stage.getTile(x, y) == LodeRunnerStage.TILE_VOID && !stage.isVilainAt(x, y)
+                    && (stage.hero == null || stage.hero.xTile != x || stage.hero.yTile != y)) {
+                LodeRunnerVilain vilain = new LodeRunnerVilain(stage);
+                vilain.moveToTile(LodeRunnerStage.getTileIndex(x, y));
+                stage.vilains.addElement(vilain);
+            }
+        }
+        if (stage.vilainEngine != null) {
+            stage.vilainEngine.dispose();
+        }
+        stage.vilainEngine = new LodeRunnerVilainEngine(stage);
+        stage.vilainEngine.load();
+        stage.vilainEngine.setDecisionThreads(threads);
+        stage.vilainScheduler.decisionsPerHeartBeat = stage.vilains.size();
+        return stage;
+    }
+
+    /** Write the whole state of a stage into a reused buffer */
+    private static byte[] getState(LodeRunnerStage stage, ByteArrayOutputStream buffer) throws IOException {
+        buffer.reset();
+        stage.serialize(new DataOutputStream(buffer));
+        return buffer.toByteArray();
+    }
+
+    /** Check if two states are identical */
+    private static boolean equals(byte[] state1, byte[] state2) {
+        if (state1.length != state2.length) {
+            return false;
+        }
+        for (int i = 0; i < state1.length; i++) {
+            if (state1[i] != state2[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Measure every crowd size, and return the number of levels whose states differ */
+    public int measureAll() throws IOException {
+        int failures = 0;
+        ByteArrayOutputStream serialBuffer = new ByteArrayOutputStream(), parallelBuffer = new ByteArrayOutputStream();
+        for (int c = 0; c < CROWDS.length; c++) {
+            long serialTime = 0, parallelTime = 0;
+            int measures = 0, hits = 0, speculations = 0;
+            for (int level = 0; level < LodeRunnerStage.MAX_LEVELS; level += levelsStep) {
+                LodeRunnerStage serial = load(level, CROWDS[c], 1), parallel = load(level, CROWDS[c], threads);
+                try {
+                    for (int h = 0; h < heartBeats; h++) {
+                        long startTime = System.nanoTime();
+                        serial.vilainEngine.heartBeat();
+                        long middleTime = System.nanoTime();
+                        parallel.vilainEngine.heartBeat();
+                        long endTime = System.nanoTime();
+                        serialTime += middleTime - startTime;
+                        parallelTime += endTime - middleTime;
+                        measures++;
+                        if (!equals(getState(serial, serialBuffer), getState(parallel, parallelBuffer))) {
+                            System.out.println("level " + (level + 1) + ", " + CROWDS[c] + " monks: states differ after heartBeat " + (h + 1));
+                            failures++;
+                            break;
+                        }
+                    }
+                    hits += parallel.vilainEngine.speculationHits;
+                    speculations += parallel.vilainEngine.speculations;
+                } finally {
+                    serial.unload();
+                    parallel.unload();
+                }
+            }
+            System.out.println(CROWDS[c] + " monks: serial " + serialTime / 1000 / measures + " us, " + threads + " threads "
+                    + parallelTime / 1000 / measures + " us per heartBeat (speedup " + serialTime * 100 / Math.max(1, parallelTime) + "%), "
+                    + hits + "/" + speculations + " speculative decisions committed");
+        }
+        return failures;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LodeRunnerDecisionBenchmark benchmark = new LodeRunnerDecisionBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i], value = args[i + 1];
+            if (option.equals("-threads")) {
+                benchmark.threads = Integer.parseInt(value);
+            } else if (option.equals("-heartBeats")) {
+                benchmark.heartBeats = Integer.parseInt(value);
+            } else if (option.equals("-levelsStep")) {
+                benchmark.levelsStep = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (benchmark.threads < 1 || benchmark.heartBeats < 1 || benchmark.levelsStep < 1) {
+            throw new IllegalArgumentException("Invalid options");
+        }
+        System.exit(benchmark.measureAll() == 0 ? 0 : 1);
+    }
+}
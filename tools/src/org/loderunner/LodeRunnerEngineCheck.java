@@ -0,0 +1,141 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.io.*;
+
+/**
+ * Desktop differential check of the array based vilain engine (see LodeRunnerVilainEngine)
+ * against the object based vilains (see LodeRunnerVilainScheduler).
+ * Every combination of level, seed and input script is played on two stages, one per engine,
+ * with the same inputs (see LodeRunnerBatch for the scripts format). After every tick, the whole
+ * state of both stages (see LodeRunnerStage.serialize) must be identical: the first differing
+ * tick of a run is reported, and the tool exits with status 1 if any run differs.
+ *
+ * Usage: LodeRunnerEngineCheck [-levels first-last] [-seeds count] [-scripts file] [-ticks max] [-difficulty 0-2]
+ *                              [-decisionThreads count]
+ *
+ * With -decisionThreads, the vilain engine computes its AI decisions on several threads
+ * (see LodeRunnerVilainEngine.setDecisionThreads).
+ */
+class LodeRunnerEngineCheck {
+
+    /** Levels range, as level numbers starting at 1 */
+    private int firstLevel = 1, lastLevel = LodeRunnerStage.MAX_LEVELS;
+    /** Number of seeds per level and script */
+    private int seeds = 1;
+    /** Input scripts */
+    private String[] scripts = LodeRunnerBatch.DEFAULT_SCRIPTS;
+    /** Maximum number of ticks per run */
+    private int maxTicks = 2000;
+    /** Vilains' AI difficulty */
+    private int difficulty = LodeRunnerPathfinder.DIFFICULTY_EASY;
+    /** Number of threads computing the AI decisions of the vilain engine */
+    private int decisionThreads = 1;
+
+    /** Load a level on a new stage, using the vilain engine or not */
+    private LodeRunnerStage load(int level, int seed, boolean useEngine) throws IOException {
+        LodeRunnerStage stage = new LodeRunnerStage();
+        stage.vilainEngineThreshold = useEngine ? 0 : Integer.MAX_VALUE;
+        stage.pathfinder.setDifficulty(difficulty);
+        stage.vilainDecisionThreads = decisionThreads;
+        stage.loadFromResource(level, seed);
+        return stage;
+    }
+
+    /** Write the whole state of a stage into a reused buffer */
+    private static byte[] getState(LodeRunnerStage stage, ByteArrayOutputStream buffer) throws IOException {
+        buffer.reset();
+        stage.serialize(new DataOutputStream(buffer));
+        return buffer.toByteArray();
+    }
+
+    /** Play a run on both engines. Returns the first tick after which their states differ, or -1 if none. */
+    private int check(int level, int seed, String inputs, int[] ticksPlayed) throws IOException {
+        LodeRunnerStage objects = load(level, seed, false), engine = load(level, seed, true);
+        try {
+            return check(objects, engine, seed, inputs, ticksPlayed);
+        } finally {
+            // Stop the decision threads of the vilain engine, if any
+            engine.unload();
+        }
+    }
+
+    /** Play a run on two loaded stages. Returns the first tick after which their states differ, or -1 if none. */
+    private int check(LodeRunnerStage objects, LodeRunnerStage engine, int seed, String inputs, int[] ticksPlayed) throws IOException {
+        GameRandom scriptRandom = new GameRandom(~seed);
+        ByteArrayOutputStream objectsBuffer = new ByteArrayOutputStream(), engineBuffer = new ByteArrayOutputStream();
+        int ticks = 0;
+        while (ticks < maxTicks && !objects.endCompleted && !objects.endHeroDied) {
+            int input = inputs.length() == 0 ? LodeRunnerStage.INPUT_NONE : LodeRunnerBatch.getInput(inputs.charAt(ticks % inputs.length()), scriptRandom);
+            objects.step(input);
+            engine.step(input);
+            ticks++;
+            ticksPlayed[0] = ticks;
+            byte[] objectsState = getState(objects, objectsBuffer), engineState = getState(engine, engineBuffer);
+            if (objectsState.length != engineState.length || objects.endHeroDied != engine.endHeroDied
+                    || objects.endCompleted != engine.endCompleted) {
+                return ticks;
+            }
+            for (int i = 0; i < objectsState.length; i++) {
+                if (objectsState[i] != engineState[i]) {
+                    return ticks;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Check every run, and return the number of runs whose states differ */
+    public int checkAll() throws IOException {
+        int runs = 0, failures = 0;
+        long totalTicks = 0;
+        int[] ticks = new int[1];
+        long startTime = System.currentTimeMillis();
+        for (int level = firstLevel - 1; level < lastLevel; level++) {
+            for (int seed = 0; seed < seeds; seed++) {
+                for (int script = 0; script < scripts.length; script++) {
+                    int tick = check(level, seed, scripts[script], ticks);
+                    if (tick >= 0) {
+                        System.out.println("level " + (level + 1) + ", seed " + seed + ", script " + script + ": states differ after tick " + tick);
+                        failures++;
+                    }
+                    runs++;
+                    totalTicks += ticks[0];
+                }
+            }
+        }
+        long time = System.currentTimeMillis() - startTime;
+        System.out.println(runs + " runs, " + totalTicks + " ticks compared in " + time + " ms: " + failures + " differing");
+        return failures;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LodeRunnerEngineCheck check = new LodeRunnerEngineCheck();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i], value = args[i + 1];
+            if (option.equals("-levels")) {
+                int dash = value.indexOf('-');
+                check.firstLevel = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+                check.lastLevel = dash < 0 ? check.firstLevel : Integer.parseInt(value.substring(dash + 1));
+            } else if (option.equals("-seeds")) {
+                check.seeds = Integer.parseInt(value);
+            } else if (option.equals("-scripts")) {
+                check.scripts = LodeRunnerBatch.readScripts(value);
+            } else if (option.equals("-ticks")) {
+                check.maxTicks = Integer.parseInt(value);
+            } else if (option.equals("-difficulty")) {
+                check.difficulty = Integer.parseInt(value);
+            } else if (option.equals("-decisionThreads")) {
+                check.decisionThreads = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (check.firstLevel < 1 || check.lastLevel > LodeRunnerStage.MAX_LEVELS || check.firstLevel > check.lastLevel
+                || check.seeds < 1 || check.decisionThreads < 1 || check.difficulty < 0 || check.difficulty >= LodeRunnerPathfinder.DIFFICULTIES) {
+            throw new IllegalArgumentException("Invalid options");
+        }
+        System.exit(check.checkAll() == 0 ? 0 : 1);
+    }
+}
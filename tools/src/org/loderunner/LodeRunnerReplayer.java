@@ -0,0 +1,40 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.io.*;
+
+/**
+ * Desktop player of replay logs (see LodeRunnerReplay), as fast as possible.
+ * Each log is checked, played on a headless stage, and its final state described on one line.
+ *
+ * Usage: LodeRunnerReplayer log...
+ */
+class LodeRunnerReplayer {
+
+    public static void main(String[] args) throws Exception {
+        int failures = 0;
+        for (int i = 0; i < args.length; i++) {
+            LodeRunnerReplay replay;
+            InputStream stream = new BufferedInputStream(new FileInputStream(args[i]));
+            try {
+                replay = LodeRunnerReplay.read(stream);
+            } catch (IOException e) {
+                System.out.println(args[i] + ": " + e.getMessage());
+                failures++;
+                continue;
+            } finally {
+                stream.close();
+            }
+            LodeRunnerStage stage = new LodeRunnerStage();
+            long startTime = System.currentTimeMillis();
+            replay.play(stage);
+            long time = System.currentTimeMillis() - startTime;
+            String outcome = stage.endCompleted ? "completed" : stage.endHeroDied ? "died" : "stopped";
+            System.out.println(args[i] + ": level " + (replay.getLevel() + 1) + ", seed " + replay.getSeed() + ", "
+                    + replay.getInputsCount() + " inputs, " + outcome + " at tick " + stage.tick + ", chests "
+                    + (stage.hero == null ? 0 : stage.hero.nChests) + "/" + stage.nChests + " (" + time + " ms)");
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
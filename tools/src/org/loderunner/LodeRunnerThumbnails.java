@@ -0,0 +1,211 @@
+package org.loderunner;
+
+/* Copyright � 2006 - Fabien GIGANTE */
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.URL;
+import javax.imageio.ImageIO;
+
+/**
+ * Desktop renderer of Lode Runner levels into PNG files, as loaded: tiles, hero and vilains at their
+ * starting position. Each level is rendered in normal size and in the small size of the stage overview,
+ * from the tiles sprite sheets and the tile frames of the stage (see LodeRunnerStage.TILE_FRAMES), composed
+ * with the game's framebuffer (see GameFramebuffer) as LodeRunnerRenderer does. The images double as golden
+ * images for render regression tests: with -check, the levels are compared with the images of a directory
+ * instead of being written.
+ * Levels are shared by worker threads (one per processor by default) pulling the next level to render.
+ *
+ * Usage: LodeRunnerThumbnails [-levels first-last] [-threads count] [-out directory] [-check directory]
+ *
+ * Each level is written as "level-NNN-normal.png" and "level-NNN-small.png", level numbers starting at 1.
+ */
+class LodeRunnerThumbnails {
+
+    /** Tile/sprite width and height in pixels, in normal and small size (see LodeRunnerRenderer.SPRITE_WIDTH) */
+    private static final int[] SPRITE_WIDTH = {12, 4}, SPRITE_HEIGHT = {11, 4};
+    /** Names of the sizes, in image file names */
+    private static final String[] SIZE_NAMES = {"normal", "small"};
+    /** Levels range, as level numbers starting at 1 */
+    private int firstLevel = 1, lastLevel = LodeRunnerStage.MAX_LEVELS;
+    /** Number of worker threads */
+    private int threadsCount = Runtime.getRuntime().availableProcessors();
+    /** Directory of the written images, or of the golden images when checking */
+    private String directory = ".";
+    private boolean isChecking = false;
+    /** Decoded tiles sprite sheets, for each size */
+    private GameSpriteSheet[] sheets = new GameSpriteSheet[2];
+    /** Index of the next level to be rendered */
+    private int nextLevel;
+    /** Number of images differing from the golden images */
+    private int differences = 0;
+    /** First error met by a worker, if any */
+    private Exception error = null;
+
+    /** Get the next level to be rendered, or -1 if none */
+    private synchronized int takeLevel() {
+        if (nextLevel == lastLevel || error != null) {
+            return -1;
+        }
+        return nextLevel++;
+    }
+
+    /** Load the pixels of the tiles sprite sheets */
+    private void loadSheets() throws IOException {
+        for (int size = 0; size < 2; size++) {
+            String name = "/res/Tiles " + SPRITE_WIDTH[size] + "x" + SPRITE_HEIGHT[size] + ".png";
+            URL url = LodeRunnerStage.class.getResource(name);
+            if (url == null) {
+                throw new IOException("Missing resource " + name);
+            }
+            BufferedImage image = ImageIO.read(url);
+            int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+            sheets[size] = new GameSpriteSheet(pixels, image.getWidth(), image.getHeight(), SPRITE_WIDTH[size], SPRITE_HEIGHT[size], 0, 0);
+        }
+    }
+
+    /**
+     * Render a stage snapshot in a size: tiles over a black background (empty tiles are left black in small size),
+     * then the sprites in order
+     */
+    private GameFramebuffer render(LodeRunnerSnapshot view, int size) {
+        int width = SPRITE_WIDTH[size], height = SPRITE_HEIGHT[size];
+        GameFramebuffer framebuffer = new GameFramebuffer(LodeRunnerStage.STAGE_WIDTH * width, LodeRunnerStage.STAGE_HEIGHT * height);
+        framebuffer.fillRect(0, 0, framebuffer.width, framebuffer.height, 0);
+        GameSpriteSheet sheet = sheets[size];
+        for (int y = 0; y < LodeRunnerStage.STAGE_HEIGHT; y++) {
+            for (int x = 0; x < LodeRunnerStage.STAGE_WIDTH; x++) {
+                int tile = view.tiles[LodeRunnerStage.getTileIndex(x, y)];
+                if (size == 0 || tile != LodeRunnerStage.TILE_VOID) {
+                    framebuffer.drawSprite(sheet, LodeRunnerStage.TILE_FRAMES[tile], x * width, y * height);
+                }
+            }
+        }
+        for (int i = 0; i < view.spritesCount; i++) {
+            framebuffer.drawSprite(sheet, view.frames[i], view.xs[i] * width / 6, view.ys[i] * height / 5);
+        }
+        return framebuffer;
+    }
+
+    /** Name of the image of a level (starting at 0) in a size */
+    private String getImageName(int level, int size) {
+        String number = Integer.toString(level + 1);
+        while (number.length() < 3) {
+            number = "0" + number;
+        }
+        return "level-" + number + "-" + SIZE_NAMES[size] + ".png";
+    }
+
+    /** Render a level (starting at 0) in both sizes, and write its images or check them against the golden ones */
+    private void renderLevel(int level) throws IOException {
+        LodeRunnerStage stage = new LodeRunnerStage();
+        stage.loadFromResource(level, 0);
+        LodeRunnerSnapshot view = new LodeRunnerSnapshot();
+        stage.acquireSnapshot(view);
+        for (int size = 0; size < 2; size++) {
+            GameFramebuffer framebuffer = render(view, size);
+            int[] pixels = framebuffer.pixels;
+            int width = framebuffer.width, height = framebuffer.height;
+            File file = new File(directory, getImageName(level, size));
+            if (!isChecking) {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                image.setRGB(0, 0, width, height, pixels, 0, width);
+                ImageIO.write(image, "png", file);
+                continue;
+            }
+            // Compare with the golden image
+            String difference = null;
+            BufferedImage golden = file.exists() ? ImageIO.read(file) : null;
+            if (golden == null) {
+                difference = "missing";
+            } else if (golden.getWidth() != width || golden.getHeight() != height) {
+                difference = "size " + golden.getWidth() + "x" + golden.getHeight() + " instead of " + width + "x" + height;
+            } else {
+                int[] goldenPixels = golden.getRGB(0, 0, width, height, null, 0, width);
+                int count = 0;
+                for (int i = 0; i < pixels.length; i++) {
+                    if (((goldenPixels[i] ^ pixels[i]) & 0xffffff) != 0) {
+                        count++;
+                    }
+                }
+                if (count > 0) {
+                    difference = count + " pixels differ";
+                }
+            }
+            if (difference != null) {
+                synchronized (this) {
+                    differences++;
+                    System.out.println(file + ": " + difference);
+                }
+            }
+        }
+    }
+
+    /** Worker thread, rendering levels until there are none left */
+    private class Worker extends Thread {
+
+        public void run() {
+            try {
+                for (int level = takeLevel(); level >= 0; level = takeLevel()) {
+                    renderLevel(level);
+                }
+            } catch (Exception e) {
+                synchronized (LodeRunnerThumbnails.this) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Render every level of the range */
+    public void renderAll() throws Exception {
+        loadSheets();
+        nextLevel = firstLevel - 1;
+        long startTime = System.currentTimeMillis();
+        Worker[] workers = new Worker[threadsCount];
+        for (int i = 0; i < threadsCount; i++) {
+            workers[i] = new Worker();
+            workers[i].start();
+        }
+        for (int i = 0; i < threadsCount; i++) {
+            workers[i].join();
+        }
+        if (error != null) {
+            throw error;
+        }
+        long time = System.currentTimeMillis() - startTime;
+        int levelsCount = lastLevel - firstLevel + 1;
+        System.err.println(levelsCount + " levels, " + 2 * levelsCount + " images " + (isChecking ? "checked" : "written") + " in "
+                + time + " ms on " + threadsCount + " threads" + (isChecking ? ", " + differences + " differing" : ""));
+    }
+
+    public static void main(String[] args) throws Exception {
+        LodeRunnerThumbnails thumbnails = new LodeRunnerThumbnails();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i], value = args[i + 1];
+            if (option.equals("-levels")) {
+                int dash = value.indexOf('-');
+                thumbnails.firstLevel = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+                thumbnails.lastLevel = dash < 0 ? thumbnails.firstLevel : Integer.parseInt(value.substring(dash + 1));
+            } else if (option.equals("-threads")) {
+                thumbnails.threadsCount = Integer.parseInt(value);
+            } else if (option.equals("-out")) {
+                thumbnails.directory = value;
+            } else if (option.equals("-check")) {
+                thumbnails.directory = value;
+                thumbnails.isChecking = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (thumbnails.firstLevel < 1 || thumbnails.lastLevel > LodeRunnerStage.MAX_LEVELS || thumbnails.firstLevel > thumbnails.lastLevel
+                || thumbnails.threadsCount < 1) {
+            throw new IllegalArgumentException("Invalid options");
+        }
+        new File(thumbnails.directory).mkdirs();
+        thumbnails.renderAll();
+        System.exit(thumbnails.differences == 0 ? 0 : 1);
+    }
+}